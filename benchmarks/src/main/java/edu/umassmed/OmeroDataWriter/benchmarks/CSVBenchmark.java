@@ -0,0 +1,114 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umassmed.OmeroDataWriter.OmeroCSVSerializer;
+import edu.umassmed.OmeroDataWriter.OmeroColumnarSerializer;
+import edu.umassmed.OmeroDataWriter.OmeroRawFileOutputStream;
+import edu.umassmed.OmeroDataWriter.OmeroTableBuilder;
+import edu.umassmed.OmeroDataWriter.OmeroTableColumn;
+
+// CSV and columnar copy generation, alone and streamed to a fake raw
+// file store
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CSVBenchmark {
+	@Param({ "10000", "1000000" })
+	public int rows;
+
+	@Param({ "4096" })
+	public int segmentRows;
+
+	@Param({ "0", "1000" })
+	public long latencyMicros;
+
+	private List<OmeroTableColumn> columns;
+	private OmeroCSVSerializer serializer;
+	private OmeroColumnarSerializer columnarSerializer;
+
+	@Setup
+	public void setUp() throws IOException {
+		final long[] ids = new long[this.rows];
+		final double[] values = new double[this.rows];
+		final boolean[] flags = new boolean[this.rows];
+		final String[] labels = new String[this.rows];
+		for (int i = 0; i < this.rows; i++) {
+			ids[i] = i;
+			values[i] = i / 3.0;
+			flags[i] = (i % 2) == 0;
+			labels[i] = "roi-" + (i % 64);
+		}
+		this.columns = new OmeroTableBuilder().addLongColumn("ID", ids)
+				.addDoubleColumn("Value", values)
+				.addBooleanColumn("Flag", flags)
+				.addStringColumn("Label", labels).getColumns();
+		this.serializer = new OmeroCSVSerializer(ForkJoinPool.commonPool(),
+				this.segmentRows);
+		this.columnarSerializer = new OmeroColumnarSerializer(
+				ForkJoinPool.commonPool(), 65536);
+		FakeOmero.setLatencyMicros(this.latencyMicros);
+		// a faster serializer is only worth measuring if its output is the
+		// same
+		CSVIdentityCheck.check(this.columns, this.segmentRows);
+	}
+
+	@Benchmark
+	public void format() throws IOException {
+		this.serializer.write(this.columns, CSVBenchmark.discard());
+	}
+
+	@Benchmark
+	public void encodeColumnar() throws IOException {
+		this.columnarSerializer.write(this.columns, CSVBenchmark.discard());
+	}
+
+	@Benchmark
+	public void formatAndUpload() throws IOException {
+		try (OmeroRawFileOutputStream out = new OmeroRawFileOutputStream(
+				FakeOmero.rawFileStore(), 262144)) {
+			this.serializer.write(this.columns, out);
+		}
+	}
+
+	@Benchmark
+	public void encodeColumnarAndUpload() throws IOException {
+		try (OmeroRawFileOutputStream out = new OmeroRawFileOutputStream(
+				FakeOmero.rawFileStore(), 262144)) {
+			this.columnarSerializer.write(this.columns, out);
+		}
+	}
+
+	private static OutputStream discard() {
+		return new OutputStream() {
+			@Override
+			public void write(final int b) {
+				// discarded
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) {
+				// discarded
+			}
+		};
+	}
+}
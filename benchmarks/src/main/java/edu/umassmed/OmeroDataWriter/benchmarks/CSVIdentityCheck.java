@@ -0,0 +1,153 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import edu.umassmed.OmeroDataWriter.OmeroCSVSerializer;
+import edu.umassmed.OmeroDataWriter.OmeroTableBuilder;
+import edu.umassmed.OmeroDataWriter.OmeroTableColumn;
+
+// Compares OmeroCSVSerializer with the BufferedWriter loop it replaced
+public class CSVIdentityCheck {
+	private static final int[] SEGMENT_ROWS = { 1, 2, 3, 7, 64, 4096 };
+
+	public static void main(final String[] args) throws IOException {
+		final List<List<OmeroTableColumn>> tables = Arrays.asList(
+				CSVIdentityCheck.edgeCases(), CSVIdentityCheck.unevenColumns(),
+				CSVIdentityCheck.random(100000, 42));
+		for (final List<OmeroTableColumn> columns : tables) {
+			for (final int segmentRows : CSVIdentityCheck.SEGMENT_ROWS) {
+				CSVIdentityCheck.check(columns, segmentRows);
+			}
+		}
+		System.out.println("CSV output identical for " + tables.size()
+				+ " tables and " + CSVIdentityCheck.SEGMENT_ROWS.length
+				+ " segment sizes");
+	}
+
+	// Throws naming the first differing byte
+	public static void check(final List<OmeroTableColumn> columns,
+			final int segmentRows) throws IOException {
+		final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		CSVIdentityCheck.writeReference(columns, expected);
+		final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		new OmeroCSVSerializer(ForkJoinPool.commonPool(), segmentRows)
+				.write(columns, actual);
+		final byte[] a = expected.toByteArray();
+		final byte[] b = actual.toByteArray();
+		if (Arrays.equals(a, b))
+			return;
+		int i = 0;
+		while ((i < a.length) && (i < b.length) && (a[i] == b[i])) {
+			i++;
+		}
+		throw new IllegalStateException("CSV output differs at byte " + i
+				+ " with " + segmentRows + " rows per segment, expected "
+				+ a.length + " bytes and got " + b.length);
+	}
+
+	// The loop OmeroDataWriter used before OmeroCSVSerializer
+	private static void writeReference(final List<OmeroTableColumn> columns,
+			final ByteArrayOutputStream out) throws IOException {
+		try (BufferedWriter bw = new BufferedWriter(
+				new OutputStreamWriter(out))) {
+			int maxSize = 0;
+			for (int i = 0; i < columns.size(); i++) {
+				if (maxSize < columns.get(i).size()) {
+					maxSize = columns.get(i).size();
+				}
+				if (i > 0) {
+					bw.write(",");
+				}
+				bw.write(columns.get(i).getName());
+			}
+			bw.write("\n");
+			for (int y = 0; y < maxSize; y++) {
+				for (int i = 0; i < columns.size(); i++) {
+					if (i > 0) {
+						bw.write(",");
+					}
+					final OmeroTableColumn column = columns.get(i);
+					if (column.size() > y) {
+						bw.write(column.getValueAsString(y));
+					} else {
+						bw.write("");
+					}
+				}
+				bw.write("\n");
+			}
+		}
+	}
+
+	private static List<OmeroTableColumn> edgeCases() {
+		final long[] longs = { 0, 1, -1, 9, 10, -10, 99, 100, 1234567890123L,
+				-1234567890123L, Integer.MAX_VALUE, Integer.MIN_VALUE,
+				Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1,
+				1000000000000000000L, -999999999999999999L };
+		final double[] doubles = { 0.0, -0.0, Double.NaN,
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 1.0, -1.0,
+				0.1, 1.0 / 3.0, 1e-3, 1e-4, 1e7, 1e-7, 9999999.0, 10000000.0,
+				Double.MIN_VALUE, Double.MAX_VALUE };
+		final boolean[] booleans = new boolean[longs.length];
+		final String[] strings = new String[longs.length];
+		final String[] values = { "", "plain", "caf\u00e9", "\u00b5m",
+				"\u4e2d\u6587", "\ud83d\ude00", "quote\"d", "new\nline",
+				"comma,separated" };
+		for (int i = 0; i < longs.length; i++) {
+			booleans[i] = (i % 3) == 0;
+			strings[i] = values[i % values.length];
+		}
+		return new OmeroTableBuilder().addLongColumn("Long", longs)
+				.addDoubleColumn("Double", doubles)
+				.addBooleanColumn("Boolean", booleans)
+				.addStringColumn("String \u00e9", strings).getColumns();
+	}
+
+	// Shorter columns leave empty cells in the last rows
+	private static List<OmeroTableColumn> unevenColumns() {
+		return new OmeroTableBuilder()
+				.addLongColumn("Long", new long[] { 1, 2, 3, 4, 5, 6, 7 })
+				.addDoubleColumn("Double", new double[] { -0.0, Double.NaN })
+				.addBooleanColumn("Boolean", new boolean[] { true })
+				.addStringColumn("String",
+						new String[] { "a", "b", "a", "c", "\u00e9" })
+				.addLongColumn("Empty", new long[0]).getColumns();
+	}
+
+	private static List<OmeroTableColumn> random(final int rows,
+			final long seed) {
+		final Random random = new Random(seed);
+		final long[] longs = new long[rows];
+		final double[] doubles = new double[rows];
+		final boolean[] booleans = new boolean[rows];
+		final String[] strings = new String[rows];
+		for (int i = 0; i < rows; i++) {
+			longs[i] = (i % 5) == 0 ? random.nextLong() : random.nextInt();
+			switch (i % 4) {
+				case 0:
+					doubles[i] = random.nextDouble();
+					break;
+				case 1:
+					doubles[i] = random.nextGaussian() * 1e9;
+					break;
+				case 2:
+					doubles[i] = Double.longBitsToDouble(random.nextLong());
+					break;
+				default:
+					doubles[i] = random.nextInt(1000) / 8.0;
+			}
+			booleans[i] = random.nextBoolean();
+			strings[i] = "label-" + random.nextInt(100) + "-\u00b5";
+		}
+		return new OmeroTableBuilder().addLongColumn("Long", longs)
+				.addDoubleColumn("Double", doubles)
+				.addBooleanColumn("Boolean", booleans)
+				.addStringColumn("String", strings).getColumns();
+	}
+}
@@ -0,0 +1,122 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.io.File;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umassmed.OmeroDataWriter.OmeroDataWriter;
+import edu.umassmed.OmeroDataWriter.OmeroTableBuilder;
+
+// JSON and CSV uploads with and without compressed transfer
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompressionBenchmark {
+	@Param({ "false", "true" })
+	public boolean compressed;
+
+	@Param({ "100000" })
+	public int rows;
+
+	@Param({ "0", "1000" })
+	public long latencyMicros;
+
+	private OmeroDataWriter writer;
+	private Long imageId;
+	private File json;
+	private OmeroTableBuilder table;
+
+	@Setup
+	public void setUp() throws Exception {
+		FakeOmero.setLatencyMicros(0);
+		final FakeGateway gateway = new FakeGateway(1, 1, 1);
+		this.writer = new OmeroDataWriter("localhost", 4064, "bench",
+				"bench");
+		this.writer.init(gateway);
+		this.writer.setCompressedTransfer(this.compressed);
+		this.imageId = gateway.getBrowser().getImageId("image-0-0-0");
+
+		this.json = File.createTempFile("bench", ".json");
+		try (Writer out = Files.newBufferedWriter(this.json.toPath(),
+				StandardCharsets.UTF_8)) {
+			out.write("[");
+			for (int i = 0; i < this.rows; i++) {
+				out.write(i == 0 ? "\n" : ",\n");
+				out.write("  {\"id\": " + i + ", \"name\": \"roi-" + (i % 64)
+						+ "\", \"area\": " + (i / 3.0) + ", \"valid\": "
+						+ ((i % 2) == 0) + "}");
+			}
+			out.write("\n]\n");
+		}
+
+		final long[] ids = new long[this.rows];
+		final double[] values = new double[this.rows];
+		final String[] labels = new String[this.rows];
+		for (int i = 0; i < this.rows; i++) {
+			ids[i] = i;
+			values[i] = i / 3.0;
+			labels[i] = "roi-" + (i % 64);
+		}
+		this.table = new OmeroTableBuilder().addLongColumn("ID", ids)
+				.addDoubleColumn("Value", values)
+				.addStringColumn("Label", labels);
+		FakeOmero.setLatencyMicros(this.latencyMicros);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.writer.close();
+		this.json.delete();
+	}
+
+	@Benchmark
+	public void fileAnnotation(final WireBytes wire) throws Exception {
+		this.writer.writeFileAnnotationToImage(this.imageId, this.json,
+				"bench", "application/json");
+		wire.add();
+	}
+
+	@Benchmark
+	public void csvTable(final WireBytes wire) throws Exception {
+		this.writer.writeDataTableToImage(this.imageId, "bench", "bench",
+				this.table, true);
+		wire.add();
+	}
+
+	// Bytes sent to the raw file store
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	@State(Scope.Thread)
+	public static class WireBytes {
+		public long wireBytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			this.wireBytes = 0;
+			FakeOmero.takeBytesWritten();
+		}
+
+		void add() {
+			this.wireBytes += FakeOmero.takeBytesWritten();
+		}
+	}
+}
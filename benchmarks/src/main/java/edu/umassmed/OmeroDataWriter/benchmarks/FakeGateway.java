@@ -0,0 +1,102 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.util.concurrent.ExecutionException;
+
+import omero.api.IAdminPrx;
+import omero.api.IQueryPrx;
+import omero.api.IUpdatePrx;
+import omero.api.RawFileStorePrx;
+import omero.gateway.Gateway;
+import omero.gateway.LoginCredentials;
+import omero.gateway.SecurityContext;
+import omero.gateway.facility.BrowseFacility;
+import omero.gateway.facility.DataManagerFacility;
+import omero.gateway.facility.Facility;
+import omero.gateway.facility.FakeBrowseFacility;
+import omero.gateway.facility.FakeDataManagerFacility;
+import omero.gateway.facility.FakeTablesFacility;
+import omero.gateway.facility.TablesFacility;
+import omero.gateway.model.ExperimenterData;
+import omero.grid.SharedResourcesPrx;
+import omero.log.SimpleLogger;
+import omero.model.ExperimenterI;
+
+// Gateway that never connects, backed by FakeOmero
+public class FakeGateway extends Gateway {
+	private final FakeBrowseFacility browser;
+	private final FakeDataManagerFacility dataManager;
+	private final FakeTablesFacility tables;
+	private boolean connected;
+
+	public FakeGateway(final int projects, final int datasets,
+			final int images) throws ExecutionException {
+		super(new SimpleLogger());
+		this.browser = new FakeBrowseFacility(this, projects, datasets, images);
+		this.dataManager = new FakeDataManagerFacility(this);
+		this.tables = new FakeTablesFacility(this);
+		this.connected = false;
+	}
+
+	public FakeBrowseFacility getBrowser() {
+		return this.browser;
+	}
+
+	@Override
+	public ExperimenterData connect(final LoginCredentials c) {
+		FakeOmero.roundTrip();
+		this.connected = true;
+		return new ExperimenterData(new ExperimenterI(1L, true)) {
+			@Override
+			public long getGroupId() {
+				return 1L;
+			}
+		};
+	}
+
+	@Override
+	public boolean isConnected() {
+		return this.connected;
+	}
+
+	@Override
+	public void disconnect() {
+		this.connected = false;
+	}
+
+	@Override
+	public <T extends Facility> T getFacility(final Class<T> type)
+			throws ExecutionException {
+		if (type == BrowseFacility.class)
+			return type.cast(this.browser);
+		if (type == DataManagerFacility.class)
+			return type.cast(this.dataManager);
+		if (type == TablesFacility.class)
+			return type.cast(this.tables);
+		return super.getFacility(type);
+	}
+
+	@Override
+	public IQueryPrx getQueryService(final SecurityContext ctx) {
+		return FakeOmero.queryService(this.browser::lookupIds);
+	}
+
+	@Override
+	public IUpdatePrx getUpdateService(final SecurityContext ctx) {
+		return FakeOmero.updateService();
+	}
+
+	@Override
+	public IAdminPrx getAdminService(final SecurityContext ctx) {
+		return FakeOmero.adminService();
+	}
+
+	@Override
+	public SharedResourcesPrx getSharedResources(final SecurityContext ctx) {
+		return FakeOmero.sharedResources();
+	}
+
+	@Override
+	public RawFileStorePrx getRawFileService(final SecurityContext ctx) {
+		return FakeOmero.rawFileStore();
+	}
+}
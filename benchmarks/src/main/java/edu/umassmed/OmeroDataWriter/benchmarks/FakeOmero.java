@@ -0,0 +1,229 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import Ice.AsyncResult;
+import omero.RType;
+import omero.api.IAdminPrx;
+import omero.api.IQueryPrx;
+import omero.api.IUpdatePrx;
+import omero.api.RawFileStorePrx;
+import omero.grid.RepositoryMap;
+import omero.grid.SharedResourcesPrx;
+import omero.grid.TablePrx;
+import omero.model.ILink;
+import omero.model.IObject;
+import omero.model.OriginalFile;
+import omero.model.OriginalFileI;
+import omero.sys.Parameters;
+
+// In process stand in for the OMERO services, every round trip waits for
+// the configured latency
+public final class FakeOmero {
+	private static final AtomicLong IDS = new AtomicLong(1000000);
+	private static final AtomicLong BYTES_WRITTEN = new AtomicLong();
+	private static volatile long latencyNanos = 0;
+
+	private FakeOmero() {
+	}
+
+	public static void setLatencyMicros(final long latencyMicros) {
+		FakeOmero.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+	}
+
+	public static void roundTrip() {
+		FakeOmero.waitUntil(System.nanoTime() + FakeOmero.latencyNanos);
+	}
+
+	private static void waitUntil(final long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	// Returns and resets the bytes sent to the raw file stores
+	public static long takeBytesWritten() {
+		return FakeOmero.BYTES_WRITTEN.getAndSet(0);
+	}
+
+	public static long nextId() {
+		return FakeOmero.IDS.incrementAndGet();
+	}
+
+	public static IObject save(final IObject object) {
+		FakeOmero.roundTrip();
+		FakeOmero.assignIds(object);
+		return object;
+	}
+
+	private static void assignIds(final IObject object) {
+		if ((object == null) || !object.isLoaded())
+			return;
+		if (object.getId() == null) {
+			object.setId(omero.rtypes.rlong(FakeOmero.nextId()));
+		}
+		if (object instanceof ILink) {
+			FakeOmero.assignIds(((ILink) object).getParent());
+			FakeOmero.assignIds(((ILink) object).getChild());
+		}
+	}
+
+	public static RawFileStorePrx rawFileStore() {
+		return FakeOmero.proxy(RawFileStorePrx.class, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "begin_write":
+					FakeOmero.BYTES_WRITTEN.addAndGet((Integer) args[2]);
+					// the write completes one round trip after it was sent
+					return FakeOmero.proxy(AsyncResult.class, new PendingWrite(
+							System.nanoTime() + FakeOmero.latencyNanos));
+				case "end_write":
+					FakeOmero.waitUntil(((PendingWrite) Proxy
+							.getInvocationHandler(args[0])).deadline);
+					return null;
+				case "save":
+					FakeOmero.roundTrip();
+					return new OriginalFileI(FakeOmero.nextId(), true);
+				default:
+					FakeOmero.roundTrip();
+					return FakeOmero.defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	public static TablePrx table() {
+		final long fileId = FakeOmero.nextId();
+		return FakeOmero.proxy(TablePrx.class, (proxy, method, args) -> {
+			FakeOmero.roundTrip();
+			switch (method.getName()) {
+				case "getOriginalFile":
+					return new OriginalFileI(fileId, true);
+				default:
+					return FakeOmero.defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	public static SharedResourcesPrx sharedResources() {
+		return FakeOmero.proxy(SharedResourcesPrx.class,
+				(proxy, method, args) -> {
+					FakeOmero.roundTrip();
+					switch (method.getName()) {
+						case "repositories":
+							final RepositoryMap repositories = new RepositoryMap();
+							repositories.descriptions = new ArrayList<OriginalFile>();
+							repositories.descriptions
+									.add(new OriginalFileI(1L, true));
+							return repositories;
+						case "newTable":
+						case "openTable":
+							return FakeOmero.table();
+						default:
+							return FakeOmero
+									.defaultValue(method.getReturnType());
+					}
+				});
+	}
+
+	public static IQueryPrx queryService(
+			final BiFunction<String, Parameters, List<List<RType>>> projection) {
+		return FakeOmero.proxy(IQueryPrx.class, (proxy, method, args) -> {
+			FakeOmero.roundTrip();
+			if (method.getName().equals("projection"))
+				return projection.apply((String) args[0], (Parameters) args[1]);
+			if (List.class.equals(method.getReturnType()))
+				return Collections.emptyList();
+			return FakeOmero.defaultValue(method.getReturnType());
+		});
+	}
+
+	public static IUpdatePrx updateService() {
+		return FakeOmero.proxy(IUpdatePrx.class, (proxy, method, args) -> {
+			FakeOmero.roundTrip();
+			switch (method.getName()) {
+				case "saveAndReturnObject":
+					FakeOmero.assignIds((IObject) args[0]);
+					return args[0];
+				case "saveAndReturnArray":
+					final List<IObject> saved = new ArrayList<IObject>();
+					for (final Object object : (List<?>) args[0]) {
+						FakeOmero.assignIds((IObject) object);
+						saved.add((IObject) object);
+					}
+					return saved;
+				default:
+					return FakeOmero.defaultValue(method.getReturnType());
+			}
+		});
+	}
+
+	public static IAdminPrx adminService() {
+		return FakeOmero.proxy(IAdminPrx.class, (proxy, method, args) -> {
+			FakeOmero.roundTrip();
+			return FakeOmero.defaultValue(method.getReturnType());
+		});
+	}
+
+	private static <T> T proxy(final Class<T> type,
+			final InvocationHandler handler) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, (proxy, method, args) -> {
+					if (method.getDeclaringClass() == Object.class) {
+						switch (method.getName()) {
+							case "equals":
+								return proxy == args[0];
+							case "hashCode":
+								return System.identityHashCode(proxy);
+							default:
+								return type.getSimpleName() + "@fake";
+						}
+					}
+					return handler.invoke(proxy, method, args);
+				}));
+	}
+
+	private static final class PendingWrite implements InvocationHandler {
+		private final long deadline;
+
+		private PendingWrite(final long deadline) {
+			this.deadline = deadline;
+		}
+
+		@Override
+		public Object invoke(final Object proxy, final Method method,
+				final Object[] args) {
+			if (method.getName().equals("isCompleted"))
+				return this.deadline <= System.nanoTime();
+			return FakeOmero.defaultValue(method.getReturnType());
+		}
+	}
+
+	private static Object defaultValue(final Class<?> type) {
+		if (!type.isPrimitive() || (type == void.class))
+			return null;
+		if (type == boolean.class)
+			return false;
+		if (type == char.class)
+			return '\0';
+		if (type == byte.class)
+			return (byte) 0;
+		if (type == short.class)
+			return (short) 0;
+		if (type == int.class)
+			return 0;
+		if (type == long.class)
+			return 0L;
+		if (type == float.class)
+			return 0f;
+		return 0d;
+	}
+}
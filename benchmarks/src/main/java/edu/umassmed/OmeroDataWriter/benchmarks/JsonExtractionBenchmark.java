@@ -0,0 +1,76 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umassmed.OmeroDataWriter.OmeroJsonMetadataExtractor;
+
+// Key path extraction while reading, against reading alone
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonExtractionBenchmark {
+	@Param({ "1000", "100000" })
+	public int components;
+
+	private byte[] document;
+	private byte[] buf;
+
+	@Setup
+	public void setUp() {
+		final StringBuilder json = new StringBuilder();
+		json.append("{\"Microscope\": {\"Name\": \"bench\", \"Components\": [");
+		for (int i = 0; i < this.components; i++) {
+			json.append(i == 0 ? "\n" : ",\n");
+			json.append("  {\"Model\": \"model-").append(i % 17)
+					.append("\", \"Serial\": ").append(i)
+					.append(", \"Wavelength\": ").append(400 + (i / 7.0))
+					.append(", \"Notes\": \"free text \\u00b5m\"}");
+		}
+		json.append("\n]}}\n");
+		this.document = json.toString().getBytes(StandardCharsets.UTF_8);
+		this.buf = new byte[262144];
+	}
+
+	@Benchmark
+	public long readOnly() throws IOException {
+		return this.drain(new ByteArrayInputStream(this.document));
+	}
+
+	@Benchmark
+	public int readAndExtract() throws IOException {
+		final OmeroJsonMetadataExtractor extractor = new OmeroJsonMetadataExtractor(
+				Arrays.asList("Microscope.Name",
+						"Microscope.Components[*].Model"));
+		this.drain(extractor.wrap(new ByteArrayInputStream(this.document)));
+		return extractor.getValues().size();
+	}
+
+	private long drain(final InputStream in) throws IOException {
+		long total = 0;
+		int rlen;
+		while ((rlen = in.read(this.buf)) > 0) {
+			total += rlen;
+		}
+		return total;
+	}
+}
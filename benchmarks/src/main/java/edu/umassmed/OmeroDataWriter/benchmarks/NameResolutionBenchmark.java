@@ -0,0 +1,78 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umassmed.OmeroDataWriter.OmeroDataWriter;
+
+// Key-value writes addressed by names, with a warm and a cleared cache
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NameResolutionBenchmark {
+	@Param({ "10", "500" })
+	public int projects;
+
+	@Param({ "0", "1000" })
+	public long latencyMicros;
+
+	@Param({ "true", "false" })
+	public boolean queryLookups;
+
+	private OmeroDataWriter writer;
+	private String projectName;
+	private String datasetName;
+	private String imageName;
+	private Map<String, String> keyValueData;
+
+	@Setup
+	public void setUp() throws Exception {
+		FakeOmero.setLatencyMicros(0);
+		this.writer = new OmeroDataWriter("localhost", 4064, "bench",
+				"bench");
+		this.writer.init(new FakeGateway(this.projects, 5, 20));
+		this.writer.setQueryLookups(this.queryLookups);
+		final int last = this.projects - 1;
+		this.projectName = "project-" + last;
+		this.datasetName = "dataset-" + last + "-4";
+		this.imageName = "image-" + last + "-4-19";
+		this.keyValueData = new LinkedHashMap<String, String>();
+		this.keyValueData.put("key", "value");
+		FakeOmero.setLatencyMicros(this.latencyMicros);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.writer.close();
+	}
+
+	@Benchmark
+	public void warmCache() throws Exception {
+		this.writer.writeDataToImage(this.projectName, this.datasetName,
+				this.imageName, "bench", this.keyValueData);
+	}
+
+	@Benchmark
+	public void coldCache() throws Exception {
+		this.writer.invalidateHierarchyCache();
+		this.writer.writeDataToImage(this.projectName, this.datasetName,
+				this.imageName, "bench", this.keyValueData);
+	}
+}
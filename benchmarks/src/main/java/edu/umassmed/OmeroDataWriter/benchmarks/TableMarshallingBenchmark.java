@@ -0,0 +1,96 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umassmed.OmeroDataWriter.OmeroDataWriter;
+import edu.umassmed.OmeroDataWriter.OmeroTableBuilder;
+
+// List based API against OmeroTableBuilder
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TableMarshallingBenchmark {
+	@Param({ "1000", "100000" })
+	public int rows;
+
+	@Param({ "0", "1000" })
+	public long latencyMicros;
+
+	private OmeroDataWriter writer;
+	private Long imageId;
+	private List<String> columnNames;
+	private List<List<? extends Object>> columnData;
+	private OmeroTableBuilder builder;
+
+	@Setup
+	public void setUp() throws Exception {
+		FakeOmero.setLatencyMicros(0);
+		final FakeGateway gateway = new FakeGateway(1, 1, 1);
+		this.writer = new OmeroDataWriter("localhost", 4064, "bench",
+				"bench");
+		this.writer.init(gateway);
+		this.imageId = gateway.getBrowser().getImageId("image-0-0-0");
+
+		final long[] ids = new long[this.rows];
+		final double[] values = new double[this.rows];
+		final String[] labels = new String[this.rows];
+		final List<Long> idList = new ArrayList<Long>();
+		final List<Double> valueList = new ArrayList<Double>();
+		final List<String> labelList = new ArrayList<String>();
+		for (int i = 0; i < this.rows; i++) {
+			ids[i] = i;
+			values[i] = i * 0.5;
+			labels[i] = "roi-" + (i % 64);
+			idList.add(ids[i]);
+			valueList.add(values[i]);
+			labelList.add(labels[i]);
+		}
+		this.columnNames = new ArrayList<String>();
+		this.columnNames.add("ID");
+		this.columnNames.add("Value");
+		this.columnNames.add("Label");
+		this.columnData = new ArrayList<List<? extends Object>>();
+		this.columnData.add(idList);
+		this.columnData.add(valueList);
+		this.columnData.add(labelList);
+		this.builder = new OmeroTableBuilder().addLongColumn("ID", ids)
+				.addDoubleColumn("Value", values)
+				.addStringColumn("Label", labels);
+		FakeOmero.setLatencyMicros(this.latencyMicros);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.writer.close();
+	}
+
+	@Benchmark
+	public void objectArrays() throws Exception {
+		this.writer.writeDataTableToImage(this.imageId, "bench", "bench",
+				this.columnNames, this.columnData, false);
+	}
+
+	@Benchmark
+	public void tableBuilder() throws Exception {
+		this.writer.writeDataTableToImage(this.imageId, "bench", "bench",
+				this.builder, false);
+	}
+}
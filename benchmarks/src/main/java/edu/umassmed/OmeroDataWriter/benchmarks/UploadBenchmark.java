@@ -0,0 +1,79 @@
+package edu.umassmed.OmeroDataWriter.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umassmed.OmeroDataWriter.OmeroChunkedUploader;
+
+// Chunked upload from memory, a stream and a mapped file
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UploadBenchmark {
+	@Param({ "16" })
+	public int sizeMB;
+
+	@Param({ "65536", "262144" })
+	public int initialChunkSize;
+
+	@Param({ "0", "1000", "20000" })
+	public long latencyMicros;
+
+	private byte[] data;
+	private File file;
+
+	@Setup
+	public void setUp() throws Exception {
+		this.data = new byte[this.sizeMB * 1024 * 1024];
+		new Random(42).nextBytes(this.data);
+		this.file = File.createTempFile("bench", ".bin");
+		Files.write(this.file.toPath(), this.data);
+		FakeOmero.setLatencyMicros(this.latencyMicros);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.file.delete();
+	}
+
+	@Benchmark
+	public long upload() throws Exception {
+		return new OmeroChunkedUploader(this.initialChunkSize).upload(
+				FakeOmero.rawFileStore(), new ByteArrayInputStream(this.data));
+	}
+
+	@Benchmark
+	public long uploadFileStream() throws Exception {
+		try (InputStream stream = new FileInputStream(this.file)) {
+			return new OmeroChunkedUploader(this.initialChunkSize)
+					.upload(FakeOmero.rawFileStore(), stream);
+		}
+	}
+
+	@Benchmark
+	public long uploadFileMapped() throws Exception {
+		return new OmeroChunkedUploader(this.initialChunkSize)
+				.upload(FakeOmero.rawFileStore(), this.file, null);
+	}
+}
@@ -0,0 +1,168 @@
+package omero.gateway.facility;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import edu.umassmed.OmeroDataWriter.benchmarks.FakeOmero;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.model.DataObject;
+import omero.gateway.model.DatasetData;
+import omero.gateway.model.ImageData;
+import omero.gateway.model.ProjectData;
+import omero.model.DatasetI;
+import omero.model.ImageI;
+import omero.model.ProjectI;
+import omero.sys.Parameters;
+
+// Tree of project-P / dataset-P-D / image-P-D-I. The facility
+// constructors are package private, hence this package
+public class FakeBrowseFacility extends BrowseFacility {
+	private final Map<Long, ProjectData> projects;
+	private final Map<Long, DatasetData> datasets;
+	private final Map<Long, ImageData> images;
+	private final Map<Long, List<ImageData>> datasetImages;
+
+	public FakeBrowseFacility(final Gateway gateway, final int projectCount,
+			final int datasetCount, final int imageCount)
+			throws ExecutionException {
+		super(gateway);
+		this.projects = new LinkedHashMap<Long, ProjectData>();
+		this.datasets = new LinkedHashMap<Long, DatasetData>();
+		this.images = new LinkedHashMap<Long, ImageData>();
+		this.datasetImages = new LinkedHashMap<Long, List<ImageData>>();
+		long id = 1;
+		for (int p = 0; p < projectCount; p++) {
+			final ProjectData project = new ProjectData(
+					new ProjectI(id++, true));
+			project.setName("project-" + p);
+			final Set<DatasetData> projectDatasets = new HashSet<DatasetData>();
+			for (int d = 0; d < datasetCount; d++) {
+				final DatasetData dataset = new DatasetData(
+						new DatasetI(id++, true));
+				dataset.setName("dataset-" + p + "-" + d);
+				final List<ImageData> contents = new ArrayList<ImageData>();
+				for (int i = 0; i < imageCount; i++) {
+					final ImageData image = new ImageData(
+							new ImageI(id++, true));
+					image.setName("image-" + p + "-" + d + "-" + i);
+					contents.add(image);
+					this.images.put(image.getId(), image);
+				}
+				projectDatasets.add(dataset);
+				this.datasets.put(dataset.getId(), dataset);
+				this.datasetImages.put(dataset.getId(), contents);
+			}
+			project.setDatasets(projectDatasets);
+			this.projects.put(project.getId(), project);
+		}
+	}
+
+	public Long getImageId(final String name) {
+		for (final ImageData image : this.images.values()) {
+			if (image.getName().equals(name))
+				return image.getId();
+		}
+		return null;
+	}
+
+	public List<List<RType>> lookupIds(final String hql,
+			final Parameters params) {
+		final String name = ((RString) params.map.get("name")).getValue();
+		final List<List<RType>> rows = new ArrayList<List<RType>>();
+		Collection<? extends DataObject> candidates;
+		if (hql.contains("ProjectDatasetLink")) {
+			final ProjectData project = this.projects.get(
+					((RLong) params.map.get("parent")).getValue());
+			candidates = project == null ? new ArrayList<DatasetData>()
+					: project.getDatasets();
+		} else if (hql.contains("DatasetImageLink")) {
+			candidates = this.datasetImages
+					.get(((RLong) params.map.get("parent")).getValue());
+		} else {
+			candidates = this.projects.values();
+		}
+		if (candidates == null)
+			return rows;
+		Long found = null;
+		for (final DataObject candidate : candidates) {
+			final String candidateName = candidate instanceof ProjectData
+					? ((ProjectData) candidate).getName()
+					: candidate instanceof DatasetData
+							? ((DatasetData) candidate).getName()
+							: ((ImageData) candidate).getName();
+			if (name.equals(candidateName)
+					&& ((found == null) || (candidate.getId() < found))) {
+				found = candidate.getId();
+			}
+		}
+		if (found != null) {
+			rows.add(Collections.<RType> singletonList(
+					omero.rtypes.rlong(found)));
+		}
+		return rows;
+	}
+
+	@Override
+	public Collection<ProjectData> getProjects(final SecurityContext ctx) {
+		FakeOmero.roundTrip();
+		return new ArrayList<ProjectData>(this.projects.values());
+	}
+
+	@Override
+	public Collection<ProjectData> getProjects(final SecurityContext ctx,
+			final Collection<Long> ids) {
+		FakeOmero.roundTrip();
+		return FakeBrowseFacility.select(this.projects, ids);
+	}
+
+	@Override
+	public Collection<DatasetData> getDatasets(final SecurityContext ctx,
+			final Collection<Long> ids) {
+		FakeOmero.roundTrip();
+		return FakeBrowseFacility.select(this.datasets, ids);
+	}
+
+	@Override
+	public Collection<ImageData> getImages(final SecurityContext ctx,
+			final Collection<Long> ids) {
+		FakeOmero.roundTrip();
+		return FakeBrowseFacility.select(this.images, ids);
+	}
+
+	@Override
+	public Collection<ImageData> getImagesForDatasets(
+			final SecurityContext ctx, final Collection<Long> ids) {
+		FakeOmero.roundTrip();
+		final List<ImageData> found = new ArrayList<ImageData>();
+		for (final Long id : ids) {
+			final List<ImageData> contents = this.datasetImages.get(id);
+			if (contents != null) {
+				found.addAll(contents);
+			}
+		}
+		return found;
+	}
+
+	private static <T> List<T> select(final Map<Long, T> objects,
+			final Collection<Long> ids) {
+		final List<T> found = new ArrayList<T>();
+		for (final Long id : ids) {
+			final T object = objects.get(id);
+			if (object != null) {
+				found.add(object);
+			}
+		}
+		return found;
+	}
+}
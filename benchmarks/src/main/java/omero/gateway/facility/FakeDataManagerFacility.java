@@ -0,0 +1,31 @@
+package omero.gateway.facility;
+
+import java.util.concurrent.ExecutionException;
+
+import edu.umassmed.OmeroDataWriter.benchmarks.FakeOmero;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.model.AnnotationData;
+import omero.gateway.model.DataObject;
+import omero.model.IObject;
+
+// Saves only assign IDs, after one round trip
+public class FakeDataManagerFacility extends DataManagerFacility {
+	public FakeDataManagerFacility(final Gateway gateway)
+			throws ExecutionException {
+		super(gateway);
+	}
+
+	@Override
+	public IObject saveAndReturnObject(final SecurityContext ctx,
+			final IObject object) {
+		return FakeOmero.save(object);
+	}
+
+	@Override
+	public DataObject attachAnnotation(final SecurityContext ctx,
+			final AnnotationData annotation, final DataObject target) {
+		FakeOmero.save(annotation.asIObject());
+		return annotation;
+	}
+}
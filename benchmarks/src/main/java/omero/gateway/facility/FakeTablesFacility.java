@@ -0,0 +1,32 @@
+package omero.gateway.facility;
+
+import java.util.concurrent.ExecutionException;
+
+import edu.umassmed.OmeroDataWriter.benchmarks.FakeOmero;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.model.DataObject;
+import omero.gateway.model.TableData;
+
+// One round trip to create a table, one per 1000 rows and one to link it
+public class FakeTablesFacility extends TablesFacility {
+	private static final int ROWS_PER_CALL = 1000;
+
+	public FakeTablesFacility(final Gateway gateway)
+			throws ExecutionException {
+		super(gateway);
+	}
+
+	@Override
+	public TableData addTable(final SecurityContext ctx,
+			final DataObject target, final String name, final TableData data) {
+		final long rows = data.getNumberOfRows();
+		FakeOmero.roundTrip();
+		for (long row = 0; row < rows;
+				row += FakeTablesFacility.ROWS_PER_CALL) {
+			FakeOmero.roundTrip();
+		}
+		FakeOmero.roundTrip();
+		return data;
+	}
+}
@@ -0,0 +1,51 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Per target outcome of a batched write: the written ID or the failure
+public class OmeroBatchResult {
+	private final Map<Long, Long> written;
+	private final Map<Long, Exception> failures;
+
+	public OmeroBatchResult() {
+		this.written = new LinkedHashMap<Long, Long>();
+		this.failures = new LinkedHashMap<Long, Exception>();
+	}
+
+	public synchronized void addWritten(final Long targetId,
+			final Long objectId) {
+		this.written.put(targetId, objectId);
+	}
+
+	public synchronized void addFailure(final Long targetId,
+			final Exception ex) {
+		this.failures.put(targetId, ex);
+	}
+
+	public synchronized void addAll(final OmeroBatchResult result) {
+		this.written.putAll(result.getWritten());
+		this.failures.putAll(result.getFailures());
+	}
+
+	public synchronized Map<Long, Long> getWritten() {
+		return Collections
+				.unmodifiableMap(new LinkedHashMap<Long, Long>(this.written));
+	}
+
+	public synchronized Map<Long, Exception> getFailures() {
+		return Collections.unmodifiableMap(
+				new LinkedHashMap<Long, Exception>(this.failures));
+	}
+
+	public synchronized boolean isSuccessful() {
+		return this.failures.isEmpty();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "written: " + this.written.size() + ", failed: "
+				+ this.failures.size();
+	}
+}
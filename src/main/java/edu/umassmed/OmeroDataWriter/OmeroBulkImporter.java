@@ -0,0 +1,216 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ome.formats.OMEROMetadataStoreClient;
+import ome.formats.importer.ImportCandidates;
+import ome.formats.importer.ImportConfig;
+import ome.formats.importer.ImportContainer;
+import ome.formats.importer.ImportLibrary;
+import ome.formats.importer.OMEROWrapper;
+import ome.formats.importer.cli.LoggingImportMonitor;
+import omero.gateway.model.MapAnnotationData;
+import omero.model.Pixels;
+
+// Each worker has its own import session, an import library holds a
+// metadata store that cannot be shared between threads
+public class OmeroBulkImporter {
+	private static final String PROGRESS_FILE = ".omero-import-progress";
+	private static final String CSV_FILETYPE = "text/csv";
+
+	private final OmeroDataWriter writer;
+	private final ImportConfig config;
+	private final int workers;
+	private boolean attachSidecars;
+	private final Map<String, Exception> failures;
+	private final List<ImportSession> importSessions;
+
+	public OmeroBulkImporter(final OmeroDataWriter writer,
+			final ImportConfig config, final int workers) {
+		this.writer = writer;
+		this.config = config;
+		this.workers = workers;
+		this.attachSidecars = false;
+		this.failures = Collections
+				.synchronizedMap(new LinkedHashMap<String, Exception>());
+		this.importSessions = Collections
+				.synchronizedList(new ArrayList<ImportSession>());
+	}
+
+	public void setAttachSidecars(final boolean attachSidecars) {
+		this.attachSidecars = attachSidecars;
+	}
+
+	public Map<String, Exception> getFailures() {
+		return this.failures;
+	}
+
+	public int importDirectory(final File target) throws Exception {
+		if (this.writer.isAnnotationOnly())
+			throw new IllegalStateException(
+					"The importer is not available in annotation only mode");
+		final File progressFile = new File(target,
+				OmeroBulkImporter.PROGRESS_FILE);
+		final Set<String> done = new HashSet<String>();
+		if (progressFile.exists()) {
+			done.addAll(Files.readAllLines(progressFile.toPath(),
+					StandardCharsets.UTF_8));
+		}
+
+		final List<ImportContainer> containers = new ArrayList<ImportContainer>();
+		final OMEROWrapper candidatesReader = new OMEROWrapper(this.config);
+		try {
+			final ImportCandidates candidates = new ImportCandidates(
+					candidatesReader, new String[] { target.getAbsolutePath() },
+					new LoggingImportMonitor());
+			for (final ImportContainer container : candidates
+					.getContainers()) {
+				if (!done.contains(container.getFile().getAbsolutePath())) {
+					containers.add(container);
+				}
+			}
+		} finally {
+			candidatesReader.close();
+		}
+
+		final ThreadLocal<ImportSession> sessions = new ThreadLocal<ImportSession>();
+		final ExecutorService importPool = Executors
+				.newFixedThreadPool(this.workers);
+		final ExecutorService uploadPool = Executors
+				.newFixedThreadPool(this.workers);
+		int imported = 0;
+		try (BufferedWriter progress = new BufferedWriter(
+				new FileWriter(progressFile, true))) {
+			final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < containers.size(); i++) {
+				final ImportContainer container = containers.get(i);
+				final int index = i;
+				futures.add(importPool.submit(() -> this.importContainer(
+						sessions, container, uploadPool, index, progress)));
+			}
+			for (final Future<Boolean> future : futures) {
+				if (future.get()) {
+					imported++;
+				}
+			}
+		} finally {
+			importPool.shutdown();
+			uploadPool.shutdown();
+			for (final ImportSession session : this.importSessions) {
+				session.close();
+			}
+			this.importSessions.clear();
+		}
+		return imported;
+	}
+
+	private boolean importContainer(final ThreadLocal<ImportSession> sessions,
+			final ImportContainer container, final ExecutorService uploadPool,
+			final int index, final BufferedWriter progress) {
+		final String path = container.getFile().getAbsolutePath();
+		try {
+			ImportSession session = sessions.get();
+			if (session == null) {
+				session = new ImportSession(this.config);
+				sessions.set(session);
+				this.importSessions.add(session);
+			}
+			final List<Pixels> pixels = session.importImage(container,
+					uploadPool, index);
+			if (this.attachSidecars) {
+				this.attachSidecars(container.getFile(), pixels);
+			}
+			synchronized (progress) {
+				progress.write(path);
+				progress.newLine();
+				progress.flush();
+			}
+			return true;
+		} catch (final Exception ex) {
+			if (ex instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+			this.failures.put(path, ex);
+			return false;
+		}
+	}
+
+	private void attachSidecars(final File file, final List<Pixels> pixels)
+			throws Exception {
+		final String name = file.getName();
+		final int dot = name.lastIndexOf('.');
+		final String baseName = dot > 0 ? name.substring(0, dot) : name;
+		final File json = new File(file.getParentFile(), baseName + ".json");
+		final File csv = new File(file.getParentFile(), baseName + ".csv");
+		if (!json.isFile() && !csv.isFile())
+			return;
+		final Set<Long> imageIDs = new HashSet<Long>();
+		for (final Pixels p : pixels) {
+			imageIDs.add(p.getImage().getId().getValue());
+		}
+		// the writer is shared by all the import workers
+		synchronized (this.writer) {
+			for (final Long imageID : imageIDs) {
+				if (json.isFile()) {
+					this.writer.writeFileAnnotationToImage(imageID, json);
+				}
+				if (csv.isFile()) {
+					this.writer.writeFileAnnotationToImage(imageID, csv,
+							MapAnnotationData.NS_CLIENT_CREATED,
+							OmeroBulkImporter.CSV_FILETYPE);
+				}
+			}
+		}
+	}
+
+	private static final class ImportSession {
+		private final OMEROMetadataStoreClient store;
+		private final OMEROWrapper reader;
+		private final ImportLibrary library;
+
+		private ImportSession(final ImportConfig config) throws Exception {
+			this.store = config.createStore();
+			this.reader = new OMEROWrapper(config);
+			this.library = new ImportLibrary(this.store, this.reader);
+			this.library.addObserver(new LoggingImportMonitor());
+		}
+
+		private List<Pixels> importImage(final ImportContainer container,
+				final ExecutorService uploadPool, final int index)
+				throws Exception {
+			try {
+				return this.library.importImage(container, uploadPool, index);
+			} catch (final Exception | Error ex) {
+				throw ex;
+			} catch (final Throwable ex) {
+				// importImage declares Throwable
+				throw new Exception(ex);
+			}
+		}
+
+		private void close() {
+			try {
+				this.reader.close();
+			} catch (final IOException ex) {
+				// the session is going away anyway
+			} finally {
+				this.store.logout();
+			}
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// The output is byte identical to writing String.valueOf of each cell
+// through a default charset writer
+public class OmeroCSVSerializer {
+	private static final byte[] TRUE = "true".getBytes();
+	private static final byte[] FALSE = "false".getBytes();
+
+	private final ForkJoinPool pool;
+	private final int segmentRows;
+	private final Charset charset;
+
+	public OmeroCSVSerializer(final ForkJoinPool pool, final int segmentRows) {
+		this.pool = pool;
+		this.segmentRows = segmentRows;
+		this.charset = Charset.defaultCharset();
+	}
+
+	public void write(final List<OmeroTableColumn> columns,
+			final OutputStream out) throws IOException {
+		final ByteSink header = new ByteSink(256);
+		int maxSize = 0;
+		for (int i = 0; i < columns.size(); i++) {
+			maxSize = Math.max(maxSize, columns.get(i).size());
+			if (i > 0) {
+				header.write((byte) ',');
+			}
+			header.write(columns.get(i).getName().getBytes(this.charset));
+		}
+		header.write((byte) '\n');
+		header.writeTo(out);
+
+		final byte[][][] dictionaries = this.encodeDictionaries(columns);
+		final int window = Math.max(1, this.pool.getParallelism() * 2);
+		final List<ForkJoinTask<ByteSink>> tasks = new ArrayList<ForkJoinTask<ByteSink>>();
+		for (int from = 0; from < maxSize; from += this.segmentRows) {
+			final int start = from;
+			final int end = Math.min(maxSize, from + this.segmentRows);
+			if (maxSize <= this.segmentRows) {
+				// a single segment is not worth a task
+				this.format(columns, dictionaries, start, end).writeTo(out);
+				return;
+			}
+			tasks.add(this.pool.submit(
+					() -> this.format(columns, dictionaries, start, end)));
+			if (tasks.size() == window) {
+				this.drain(tasks, out);
+			}
+		}
+		this.drain(tasks, out);
+	}
+
+	private void drain(final List<ForkJoinTask<ByteSink>> tasks,
+			final OutputStream out) throws IOException {
+		try {
+			for (final ForkJoinTask<ByteSink> task : tasks) {
+				task.get().writeTo(out);
+			}
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing CSV", ex);
+		} catch (final ExecutionException ex) {
+			throw new IOException("Cannot format CSV", ex.getCause());
+		} finally {
+			tasks.clear();
+		}
+	}
+
+	private byte[][][] encodeDictionaries(
+			final List<OmeroTableColumn> columns) {
+		final byte[][][] dictionaries = new byte[columns.size()][][];
+		for (int i = 0; i < columns.size(); i++) {
+			if (columns.get(i) instanceof OmeroTableColumn.StringData) {
+				final String[] dictionary = ((OmeroTableColumn.StringData) columns
+						.get(i)).getDictionary();
+				dictionaries[i] = new byte[dictionary.length][];
+				for (int y = 0; y < dictionary.length; y++) {
+					dictionaries[i][y] = dictionary[y].getBytes(this.charset);
+				}
+			}
+		}
+		return dictionaries;
+	}
+
+	private ByteSink format(final List<OmeroTableColumn> columns,
+			final byte[][][] dictionaries, final int from, final int to) {
+		final ByteSink sink = new ByteSink(
+				(to - from) * Math.max(1, columns.size()) * 8);
+		for (int y = from; y < to; y++) {
+			for (int i = 0; i < columns.size(); i++) {
+				if (i > 0) {
+					sink.write((byte) ',');
+				}
+				final OmeroTableColumn column = columns.get(i);
+				if (column.size() <= y) {
+					continue;
+				}
+				if (column instanceof OmeroTableColumn.LongData) {
+					sink.writeLong(
+							((OmeroTableColumn.LongData) column).getValues()[y]);
+				} else if (column instanceof OmeroTableColumn.BooleanData) {
+					sink.write(((OmeroTableColumn.BooleanData) column)
+							.getValues()[y] ? OmeroCSVSerializer.TRUE
+									: OmeroCSVSerializer.FALSE);
+				} else if (column instanceof OmeroTableColumn.StringData) {
+					sink.write(dictionaries[i][((OmeroTableColumn.StringData) column)
+							.getCodes()[y]]);
+				} else if (column instanceof OmeroTableColumn.DoubleData) {
+					sink.writeAscii(Double.toString(
+							((OmeroTableColumn.DoubleData) column)
+									.getValues()[y]));
+				} else {
+					sink.write(column.getValueAsString(y).getBytes(this.charset));
+				}
+			}
+			sink.write((byte) '\n');
+		}
+		return sink;
+	}
+
+	static final class ByteSink {
+		private byte[] buf;
+		private int count;
+
+		ByteSink(final int capacity) {
+			this.buf = new byte[Math.max(16, capacity)];
+			this.count = 0;
+		}
+
+		private void ensure(final int extra) {
+			if ((this.count + extra) > this.buf.length) {
+				final byte[] grown = new byte[Math.max(this.buf.length * 2,
+						this.count + extra)];
+				System.arraycopy(this.buf, 0, grown, 0, this.count);
+				this.buf = grown;
+			}
+		}
+
+		void write(final byte b) {
+			this.ensure(1);
+			this.buf[this.count++] = b;
+		}
+
+		void write(final byte[] bytes) {
+			this.ensure(bytes.length);
+			System.arraycopy(bytes, 0, this.buf, this.count, bytes.length);
+			this.count += bytes.length;
+		}
+
+		void writeAscii(final String value) {
+			final int len = value.length();
+			this.ensure(len);
+			for (int i = 0; i < len; i++) {
+				this.buf[this.count++] = (byte) value.charAt(i);
+			}
+		}
+
+		void writeLong(final long value) {
+			if (value == Long.MIN_VALUE) {
+				this.writeAscii(Long.toString(value));
+				return;
+			}
+			this.ensure(20);
+			long v = value;
+			if (v < 0) {
+				this.buf[this.count++] = '-';
+				v = -v;
+			}
+			final int start = this.count;
+			do {
+				this.buf[this.count++] = (byte) ('0' + (v % 10));
+				v /= 10;
+			} while (v != 0);
+			// digits were written least significant first
+			for (int i = start, j = this.count - 1; i < j; i++, j--) {
+				final byte tmp = this.buf[i];
+				this.buf[i] = this.buf[j];
+				this.buf[j] = tmp;
+			}
+		}
+
+		int size() {
+			return this.count;
+		}
+
+		void writeTo(final OutputStream out) throws IOException {
+			out.write(this.buf, 0, this.count);
+		}
+	}
+}
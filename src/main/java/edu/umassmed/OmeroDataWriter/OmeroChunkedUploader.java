@@ -0,0 +1,175 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import Ice.AsyncResult;
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+
+// The chunk size grows while chunks are written faster than the target
+// round trip time and shrinks when they are slower
+public class OmeroChunkedUploader {
+	private static final int MIN_CHUNK_SIZE = 65536;
+	private static final int MAX_CHUNK_SIZE = 8388608;
+	private static final long TARGET_WRITE_NANOS = TimeUnit.MILLISECONDS
+			.toNanos(200);
+	private static final long MAP_WINDOW_SIZE = 268435456;
+
+	private volatile int chunkSize;
+	private volatile OmeroWriterMetrics metrics;
+
+	public OmeroChunkedUploader(final int initialChunkSize) {
+		this.chunkSize = Math.max(OmeroChunkedUploader.MIN_CHUNK_SIZE,
+				Math.min(OmeroChunkedUploader.MAX_CHUNK_SIZE, initialChunkSize));
+		this.metrics = OmeroWriterMetrics.NONE;
+	}
+
+	public void setMetrics(final OmeroWriterMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public int getChunkSize() {
+		return this.chunkSize;
+	}
+
+	public long upload(final RawFileStorePrx rawFileStore,
+			final InputStream stream) throws IOException, ServerError {
+		return this.upload(rawFileStore,
+				(buf, len) -> OmeroChunkedUploader.fill(stream, buf, len),
+				null);
+	}
+
+	public long upload(final RawFileStorePrx rawFileStore, final File file,
+			final MessageDigest digest) throws IOException, ServerError {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			return this.upload(rawFileStore, new MappedSource(channel),
+					digest);
+		}
+	}
+
+	private long upload(final RawFileStorePrx rawFileStore,
+			final ChunkSource source, final MessageDigest digest)
+			throws IOException, ServerError {
+		int size = this.chunkSize;
+		byte[] current = new byte[size];
+		byte[] next = new byte[size];
+		// the length each chunk was read with, the size may have moved since
+		int requested = size;
+		int rlen = source.fill(current, requested);
+		if (digest != null) {
+			digest.update(current, 0, rlen);
+		}
+		long pos = 0;
+		while (rlen > 0) {
+			final long start = System.nanoTime();
+			final AsyncResult result = rawFileStore.begin_write(current, pos,
+					rlen);
+			pos += rlen;
+			// read the next chunk while the write is in flight
+			if (next.length < size) {
+				next = new byte[size];
+			}
+			final int nextRequested = size;
+			final int nextLen = source.fill(next, nextRequested);
+			if (digest != null) {
+				digest.update(next, 0, nextLen);
+			}
+			try {
+				rawFileStore.end_write(result);
+			} catch (final ServerError ex) {
+				this.metrics.recordError(OmeroWriterMetrics.RAW_FILE_WRITE);
+				throw ex;
+			}
+			final long elapsed = System.nanoTime() - start;
+			this.metrics.recordLatency(OmeroWriterMetrics.RAW_FILE_WRITE,
+					elapsed);
+			this.metrics.addBytes(OmeroWriterMetrics.RAW_FILE_WRITE, rlen);
+			size = this.adapt(size, requested, rlen, elapsed);
+
+			final byte[] tmp = current;
+			current = next;
+			next = tmp;
+			rlen = nextLen;
+			requested = nextRequested;
+		}
+		this.chunkSize = size;
+		return pos;
+	}
+
+	private int adapt(final int size, final int requested, final int written,
+			final long elapsed) {
+		// a short chunk is the end of the stream and says nothing about speed
+		if (written < requested)
+			return size;
+		if ((elapsed < (OmeroChunkedUploader.TARGET_WRITE_NANOS / 2))
+				&& (written < OmeroChunkedUploader.MAX_CHUNK_SIZE))
+			return Math.max(size, Math.min(
+					OmeroChunkedUploader.MAX_CHUNK_SIZE, written * 2));
+		if ((elapsed > (OmeroChunkedUploader.TARGET_WRITE_NANOS * 2))
+				&& (written > OmeroChunkedUploader.MIN_CHUNK_SIZE))
+			return Math.min(size, Math.max(
+					OmeroChunkedUploader.MIN_CHUNK_SIZE, written / 2));
+		return size;
+	}
+
+	private static int fill(final InputStream stream, final byte[] buf,
+			final int len) throws IOException {
+		int total = 0;
+		int rlen;
+		while ((total < len)
+				&& ((rlen = stream.read(buf, total, len - total)) > 0)) {
+			total += rlen;
+		}
+		return total;
+	}
+
+	private interface ChunkSource {
+		int fill(byte[] buf, int len) throws IOException;
+	}
+
+	// Maps a bounded window of the file at a time
+	private static final class MappedSource implements ChunkSource {
+		private final FileChannel channel;
+		private final long size;
+		private long mapped;
+		private MappedByteBuffer window;
+
+		private MappedSource(final FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.size = channel.size();
+			this.mapped = 0;
+			this.window = null;
+		}
+
+		@Override
+		public int fill(final byte[] buf, final int len) throws IOException {
+			int total = 0;
+			while (total < len) {
+				if ((this.window == null) || !this.window.hasRemaining()) {
+					if (this.mapped >= this.size) {
+						break;
+					}
+					final long windowSize = Math.min(
+							OmeroChunkedUploader.MAP_WINDOW_SIZE,
+							this.size - this.mapped);
+					this.window = this.channel.map(
+							FileChannel.MapMode.READ_ONLY, this.mapped,
+							windowSize);
+					this.mapped += windowSize;
+				}
+				final int n = Math.min(len - total, this.window.remaining());
+				this.window.get(buf, total, n);
+				total += n;
+			}
+			return total;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Only the chunks of the requested columns are read
+public class OmeroColumnarReader {
+	private final SeekableByteChannel channel;
+	private final Map<String, ColumnIndex> columns;
+	private final int rowCount;
+
+	public OmeroColumnarReader(final SeekableByteChannel channel)
+			throws IOException {
+		this.channel = channel;
+		final int trailerLength = 4 + OmeroColumnarSerializer.MAGIC.length;
+		final long size = channel.size();
+		final ByteBuffer trailer = this.read(size - trailerLength,
+				trailerLength);
+		final byte[] magic = new byte[OmeroColumnarSerializer.MAGIC.length];
+		final int footerLength = trailer.getInt();
+		trailer.get(magic);
+		if (!Arrays.equals(magic, OmeroColumnarSerializer.MAGIC))
+			throw new IOException("Not a columnar table file");
+
+		final ByteBuffer footerBuffer = this
+				.read(size - trailerLength - footerLength, footerLength);
+		final DataInputStream footer = new DataInputStream(
+				new ByteArrayInputStream(footerBuffer.array()));
+		final int columnCount = footer.readInt();
+		final List<ColumnIndex> indexes = new ArrayList<ColumnIndex>();
+		this.columns = new LinkedHashMap<String, ColumnIndex>();
+		for (int i = 0; i < columnCount; i++) {
+			final ColumnIndex index = new ColumnIndex(footer.readUTF(),
+					footer.readByte(), footer.readByte(), footer.readInt());
+			if (index.encoding == OmeroColumnarSerializer.ENCODING_DICTIONARY) {
+				index.dictionary = new ChunkIndex(footer);
+				index.dictionarySize = footer.readInt();
+			}
+			indexes.add(index);
+			this.columns.put(index.name, index);
+		}
+		this.rowCount = footer.readInt();
+		final int rowGroupRows = footer.readInt();
+		final int rowGroupCount = footer.readInt();
+		for (final ColumnIndex index : indexes) {
+			index.rowGroupRows = rowGroupRows;
+		}
+		for (int g = 0; g < rowGroupCount; g++) {
+			for (final ColumnIndex index : indexes) {
+				index.chunks.add(new ChunkIndex(footer));
+			}
+		}
+	}
+
+	public List<String> getColumnNames() {
+		return new ArrayList<String>(this.columns.keySet());
+	}
+
+	public int getRowCount() {
+		return this.rowCount;
+	}
+
+	public OmeroTableBuilder read(final List<String> names)
+			throws IOException {
+		final OmeroTableBuilder table = new OmeroTableBuilder();
+		for (final String name : names) {
+			table.addColumn(this.readColumn(name));
+		}
+		return table;
+	}
+
+	public OmeroTableColumn readColumn(final String name) throws IOException {
+		final ColumnIndex index = this.columns.get(name);
+		if (index == null)
+			throw new IllegalArgumentException("No column " + name);
+		switch (index.encoding) {
+			case OmeroColumnarSerializer.ENCODING_DELTA:
+				return new OmeroTableColumn.LongData(name,
+						this.readLongs(index));
+			case OmeroColumnarSerializer.ENCODING_SPLIT:
+				return new OmeroTableColumn.DoubleData(name,
+						this.readDoubles(index));
+			case OmeroColumnarSerializer.ENCODING_BITS:
+				return new OmeroTableColumn.BooleanData(name,
+						this.readBooleans(index));
+			case OmeroColumnarSerializer.ENCODING_DICTIONARY:
+				return this.readDictionaryStrings(index);
+			default:
+				return this.readPlain(index);
+		}
+	}
+
+	private long[] readLongs(final ColumnIndex index) throws IOException {
+		final long[] values = new long[index.size];
+		for (int g = 0; g < index.chunks.size(); g++) {
+			final ByteBuffer raw = this.inflate(index.chunks.get(g));
+			long prev = 0;
+			for (int y = index.from(g); y < index.to(g); y++) {
+				final long zigzag = OmeroColumnarReader.readVarint(raw);
+				prev += (zigzag >>> 1) ^ -(zigzag & 1);
+				values[y] = prev;
+			}
+		}
+		return values;
+	}
+
+	private double[] readDoubles(final ColumnIndex index) throws IOException {
+		final double[] values = new double[index.size];
+		for (int g = 0; g < index.chunks.size(); g++) {
+			final ByteBuffer raw = this.inflate(index.chunks.get(g));
+			final int from = index.from(g);
+			final int to = index.to(g);
+			final long[] bits = new long[to - from];
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				for (int y = 0; y < bits.length; y++) {
+					bits[y] |= (raw.get() & 0xFFL) << shift;
+				}
+			}
+			for (int y = 0; y < bits.length; y++) {
+				values[from + y] = Double.longBitsToDouble(bits[y]);
+			}
+		}
+		return values;
+	}
+
+	private boolean[] readBooleans(final ColumnIndex index)
+			throws IOException {
+		final boolean[] values = new boolean[index.size];
+		for (int g = 0; g < index.chunks.size(); g++) {
+			final ByteBuffer raw = this.inflate(index.chunks.get(g));
+			final int to = index.to(g);
+			for (int y = index.from(g); y < to; y += 8) {
+				final int bits = raw.get();
+				for (int b = 0; (b < 8) && ((y + b) < to); b++) {
+					values[y + b] = (bits & (1 << b)) != 0;
+				}
+			}
+		}
+		return values;
+	}
+
+	private OmeroTableColumn readDictionaryStrings(final ColumnIndex index)
+			throws IOException {
+		final ByteBuffer rawDictionary = this.inflate(index.dictionary);
+		final String[] dictionary = new String[index.dictionarySize];
+		for (int i = 0; i < dictionary.length; i++) {
+			dictionary[i] = OmeroColumnarReader.readString(rawDictionary);
+		}
+		final int[] codes = new int[index.size];
+		for (int g = 0; g < index.chunks.size(); g++) {
+			final ByteBuffer raw = this.inflate(index.chunks.get(g));
+			for (int y = index.from(g); y < index.to(g); y++) {
+				codes[y] = (int) OmeroColumnarReader.readVarint(raw);
+			}
+		}
+		return new OmeroTableColumn.StringData(index.name, codes, dictionary);
+	}
+
+	private OmeroTableColumn readPlain(final ColumnIndex index)
+			throws IOException {
+		final String[] values = new String[index.size];
+		for (int g = 0; g < index.chunks.size(); g++) {
+			final ByteBuffer raw = this.inflate(index.chunks.get(g));
+			for (int y = index.from(g); y < index.to(g); y++) {
+				values[y] = OmeroColumnarReader.readString(raw);
+			}
+		}
+		switch (index.type) {
+			case OmeroColumnarSerializer.TYPE_LONG:
+				final long[] longs = new long[values.length];
+				for (int y = 0; y < values.length; y++) {
+					longs[y] = Long.parseLong(values[y]);
+				}
+				return new OmeroTableColumn.LongData(index.name, longs);
+			case OmeroColumnarSerializer.TYPE_DOUBLE:
+				final double[] doubles = new double[values.length];
+				for (int y = 0; y < values.length; y++) {
+					doubles[y] = Double.parseDouble(values[y]);
+				}
+				return new OmeroTableColumn.DoubleData(index.name, doubles);
+			case OmeroColumnarSerializer.TYPE_BOOLEAN:
+				final boolean[] booleans = new boolean[values.length];
+				for (int y = 0; y < values.length; y++) {
+					booleans[y] = Boolean.parseBoolean(values[y]);
+				}
+				return new OmeroTableColumn.BooleanData(index.name, booleans);
+			default:
+				return OmeroTableColumn.StringData.encode(index.name, values);
+		}
+	}
+
+	private ByteBuffer inflate(final ChunkIndex chunk) throws IOException {
+		final ByteBuffer data = this.read(chunk.offset, chunk.length);
+		final byte[] raw = new byte[chunk.rawLength];
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(data.array());
+			int n = 0;
+			while (n < raw.length) {
+				final int len = inflater.inflate(raw, n, raw.length - n);
+				if ((len == 0)
+						&& (inflater.needsInput() || inflater.finished()))
+					throw new IOException("Truncated column chunk");
+				n += len;
+			}
+		} catch (final DataFormatException ex) {
+			throw new IOException("Corrupt column chunk", ex);
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(raw);
+	}
+
+	private ByteBuffer read(final long position, final int length)
+			throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		this.channel.position(position);
+		while (buffer.hasRemaining()) {
+			if (this.channel.read(buffer) < 0)
+				throw new IOException("Unexpected end of columnar file");
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static long readVarint(final ByteBuffer raw) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = raw.get();
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static String readString(final ByteBuffer raw) {
+		final int length = (int) OmeroColumnarReader.readVarint(raw);
+		final String value = new String(raw.array(), raw.position(), length,
+				StandardCharsets.UTF_8);
+		raw.position(raw.position() + length);
+		return value;
+	}
+
+	private static final class ColumnIndex {
+		private final String name;
+		private final byte type;
+		private final byte encoding;
+		private final int size;
+		private final List<ChunkIndex> chunks;
+		private ChunkIndex dictionary;
+		private int dictionarySize;
+		private int rowGroupRows;
+
+		private ColumnIndex(final String name, final byte type,
+				final byte encoding, final int size) {
+			this.name = name;
+			this.type = type;
+			this.encoding = encoding;
+			this.size = size;
+			this.chunks = new ArrayList<ChunkIndex>();
+		}
+
+		private int from(final int rowGroup) {
+			return Math.min(this.size, rowGroup * this.rowGroupRows);
+		}
+
+		private int to(final int rowGroup) {
+			return Math.min(this.size, (rowGroup + 1) * this.rowGroupRows);
+		}
+	}
+
+	private static final class ChunkIndex {
+		private final long offset;
+		private final int length;
+		private final int rawLength;
+
+		private ChunkIndex(final DataInputStream footer) throws IOException {
+			this.offset = footer.readLong();
+			this.length = footer.readInt();
+			this.rawLength = footer.readInt();
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Layout: magic, version, string dictionaries, row group chunks, footer
+// (names, types, encodings, chunk offsets and lengths), footer length as a
+// big endian int, magic. Longs are zigzag varint deltas, doubles are split
+// in eight byte streams, booleans are bits and strings are dictionary codes
+// or length prefixed UTF-8.
+public class OmeroColumnarSerializer {
+	static final byte[] MAGIC = { 'O', 'M', 'C', 'F' };
+	static final byte VERSION = 1;
+	static final byte TYPE_LONG = 'L';
+	static final byte TYPE_DOUBLE = 'D';
+	static final byte TYPE_BOOLEAN = 'B';
+	static final byte TYPE_STRING = 'S';
+	static final byte ENCODING_DELTA = 1;
+	static final byte ENCODING_SPLIT = 2;
+	static final byte ENCODING_BITS = 3;
+	static final byte ENCODING_DICTIONARY = 4;
+	static final byte ENCODING_PLAIN = 5;
+
+	private final ForkJoinPool pool;
+	private final int rowGroupRows;
+	private final int level;
+
+	public OmeroColumnarSerializer(final ForkJoinPool pool,
+			final int rowGroupRows) {
+		this(pool, rowGroupRows, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public OmeroColumnarSerializer(final ForkJoinPool pool,
+			final int rowGroupRows, final int level) {
+		this.pool = pool;
+		this.rowGroupRows = rowGroupRows;
+		this.level = level;
+	}
+
+	public void write(final List<OmeroTableColumn> columns,
+			final OutputStream out) throws IOException {
+		long pos = 0;
+		out.write(OmeroColumnarSerializer.MAGIC);
+		out.write(OmeroColumnarSerializer.VERSION);
+		pos += OmeroColumnarSerializer.MAGIC.length + 1;
+
+		int maxSize = 0;
+		final Chunk[] dictionaries = new Chunk[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			final OmeroTableColumn column = columns.get(i);
+			maxSize = Math.max(maxSize, column.size());
+			if (column instanceof OmeroTableColumn.StringData) {
+				dictionaries[i] = this.encodeDictionary(
+						((OmeroTableColumn.StringData) column).getDictionary());
+				dictionaries[i].offset = pos;
+				pos += dictionaries[i].write(out);
+			}
+		}
+
+		final List<Chunk[]> rowGroups = new ArrayList<Chunk[]>();
+		final int window = Math.max(1, this.pool.getParallelism() * 2);
+		final List<ForkJoinTask<Chunk[]>> tasks = new ArrayList<ForkJoinTask<Chunk[]>>();
+		for (int from = 0; from < maxSize; from += this.rowGroupRows) {
+			final int start = from;
+			final int end = Math.min(maxSize, from + this.rowGroupRows);
+			tasks.add(this.pool
+					.submit(() -> this.encodeRowGroup(columns, start, end)));
+			if (tasks.size() == window) {
+				pos = this.drain(tasks, out, pos, rowGroups);
+			}
+		}
+		pos = this.drain(tasks, out, pos, rowGroups);
+
+		final ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+		final DataOutputStream footer = new DataOutputStream(footerBytes);
+		footer.writeInt(columns.size());
+		for (int i = 0; i < columns.size(); i++) {
+			final OmeroTableColumn column = columns.get(i);
+			footer.writeUTF(column.getName());
+			footer.writeByte(OmeroColumnarSerializer.getType(column));
+			footer.writeByte(OmeroColumnarSerializer.getEncoding(column));
+			footer.writeInt(column.size());
+			if (dictionaries[i] != null) {
+				dictionaries[i].writeIndex(footer);
+				footer.writeInt(((OmeroTableColumn.StringData) column)
+						.getDictionary().length);
+			}
+		}
+		footer.writeInt(maxSize);
+		footer.writeInt(this.rowGroupRows);
+		footer.writeInt(rowGroups.size());
+		for (final Chunk[] rowGroup : rowGroups) {
+			for (final Chunk chunk : rowGroup) {
+				chunk.writeIndex(footer);
+			}
+		}
+		footer.writeInt(footerBytes.size());
+		footer.write(OmeroColumnarSerializer.MAGIC);
+		footerBytes.writeTo(out);
+	}
+
+	private long drain(final List<ForkJoinTask<Chunk[]>> tasks,
+			final OutputStream out, final long start,
+			final List<Chunk[]> rowGroups) throws IOException {
+		long pos = start;
+		try {
+			for (final ForkJoinTask<Chunk[]> task : tasks) {
+				final Chunk[] rowGroup = task.get();
+				for (final Chunk chunk : rowGroup) {
+					chunk.offset = pos;
+					pos += chunk.write(out);
+				}
+				rowGroups.add(rowGroup);
+			}
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing columns", ex);
+		} catch (final ExecutionException ex) {
+			throw new IOException("Cannot encode columns", ex.getCause());
+		} finally {
+			tasks.clear();
+		}
+		return pos;
+	}
+
+	private Chunk[] encodeRowGroup(final List<OmeroTableColumn> columns,
+			final int from, final int to) throws IOException {
+		final Chunk[] chunks = new Chunk[columns.size()];
+		for (int i = 0; i < columns.size(); i++) {
+			final OmeroTableColumn column = columns.get(i);
+			final int end = Math.min(to, column.size());
+			final OmeroCSVSerializer.ByteSink raw = new OmeroCSVSerializer.ByteSink(
+					Math.max(0, end - from) * 2);
+			if (from < end) {
+				OmeroColumnarSerializer.encode(column, from, end, raw);
+			}
+			chunks[i] = this.deflate(raw);
+		}
+		return chunks;
+	}
+
+	private static void encode(final OmeroTableColumn column, final int from,
+			final int to, final OmeroCSVSerializer.ByteSink raw) {
+		if (column instanceof OmeroTableColumn.LongData) {
+			final long[] values = ((OmeroTableColumn.LongData) column)
+					.getValues();
+			long prev = 0;
+			for (int y = from; y < to; y++) {
+				final long delta = values[y] - prev;
+				OmeroColumnarSerializer.writeVarint(raw,
+						(delta << 1) ^ (delta >> 63));
+				prev = values[y];
+			}
+		} else if (column instanceof OmeroTableColumn.DoubleData) {
+			// the same byte of consecutive values often repeats, which
+			// deflates far better than the values side by side
+			final double[] values = ((OmeroTableColumn.DoubleData) column)
+					.getValues();
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				for (int y = from; y < to; y++) {
+					raw.write((byte) (Double
+							.doubleToRawLongBits(values[y]) >>> shift));
+				}
+			}
+		} else if (column instanceof OmeroTableColumn.BooleanData) {
+			final boolean[] values = ((OmeroTableColumn.BooleanData) column)
+					.getValues();
+			for (int y = from; y < to; y += 8) {
+				int bits = 0;
+				for (int b = 0; (b < 8) && ((y + b) < to); b++) {
+					if (values[y + b]) {
+						bits |= 1 << b;
+					}
+				}
+				raw.write((byte) bits);
+			}
+		} else if (column instanceof OmeroTableColumn.StringData) {
+			final int[] codes = ((OmeroTableColumn.StringData) column)
+					.getCodes();
+			for (int y = from; y < to; y++) {
+				OmeroColumnarSerializer.writeVarint(raw, codes[y]);
+			}
+		} else {
+			for (int y = from; y < to; y++) {
+				OmeroColumnarSerializer.writeString(raw,
+						column.getValueAsString(y));
+			}
+		}
+	}
+
+	private Chunk encodeDictionary(final String[] dictionary)
+			throws IOException {
+		final OmeroCSVSerializer.ByteSink raw = new OmeroCSVSerializer.ByteSink(
+				dictionary.length * 8);
+		for (final String value : dictionary) {
+			OmeroColumnarSerializer.writeString(raw, value);
+		}
+		return this.deflate(raw);
+	}
+
+	private Chunk deflate(final OmeroCSVSerializer.ByteSink raw)
+			throws IOException {
+		final Deflater deflater = new Deflater(this.level);
+		final ByteArrayOutputStream data = new ByteArrayOutputStream(
+				Math.max(32, raw.size() / 2));
+		try (DeflaterOutputStream out = new DeflaterOutputStream(data,
+				deflater)) {
+			raw.writeTo(out);
+		} finally {
+			deflater.end();
+		}
+		return new Chunk(data.toByteArray(), raw.size());
+	}
+
+	private static void writeString(final OmeroCSVSerializer.ByteSink raw,
+			final String value) {
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		OmeroColumnarSerializer.writeVarint(raw, bytes.length);
+		raw.write(bytes);
+	}
+
+	private static void writeVarint(final OmeroCSVSerializer.ByteSink raw,
+			final long value) {
+		long v = value;
+		while ((v & ~0x7FL) != 0) {
+			raw.write((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		raw.write((byte) v);
+	}
+
+	private static byte getType(final OmeroTableColumn column) {
+		final Class<?> type = column.getType();
+		if (Long.class.equals(type))
+			return OmeroColumnarSerializer.TYPE_LONG;
+		if (Double.class.equals(type))
+			return OmeroColumnarSerializer.TYPE_DOUBLE;
+		if (Boolean.class.equals(type))
+			return OmeroColumnarSerializer.TYPE_BOOLEAN;
+		return OmeroColumnarSerializer.TYPE_STRING;
+	}
+
+	private static byte getEncoding(final OmeroTableColumn column) {
+		if (column instanceof OmeroTableColumn.LongData)
+			return OmeroColumnarSerializer.ENCODING_DELTA;
+		if (column instanceof OmeroTableColumn.DoubleData)
+			return OmeroColumnarSerializer.ENCODING_SPLIT;
+		if (column instanceof OmeroTableColumn.BooleanData)
+			return OmeroColumnarSerializer.ENCODING_BITS;
+		if (column instanceof OmeroTableColumn.StringData)
+			return OmeroColumnarSerializer.ENCODING_DICTIONARY;
+		return OmeroColumnarSerializer.ENCODING_PLAIN;
+	}
+
+	private static final class Chunk {
+		private final byte[] data;
+		private final int rawLength;
+		private long offset;
+
+		private Chunk(final byte[] data, final int rawLength) {
+			this.data = data;
+			this.rawLength = rawLength;
+		}
+
+		private int write(final OutputStream out) throws IOException {
+			out.write(this.data);
+			return this.data.length;
+		}
+
+		private void writeIndex(final DataOutputStream footer)
+				throws IOException {
+			footer.writeLong(this.offset);
+			footer.writeInt(this.data.length);
+			footer.writeInt(this.rawLength);
+		}
+	}
+}
@@ -1,20 +1,38 @@
 package edu.umassmed.OmeroDataWriter;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Array;
-import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import ome.formats.OMEROMetadataStoreClient;
 import ome.formats.importer.ImportConfig;
@@ -22,8 +40,14 @@ import ome.formats.importer.ImportLibrary;
 import ome.formats.importer.OMEROWrapper;
 import ome.formats.importer.cli.ErrorHandler;
 import ome.formats.importer.cli.LoggingImportMonitor;
+import omero.RLong;
+import omero.RString;
+import omero.RType;
 import omero.ServerError;
+import omero.api.IQueryPrx;
+import omero.api.IUpdatePrx;
 import omero.api.RawFileStorePrx;
+import omero.constants.namespaces.NSBULKANNOTATIONS;
 import omero.gateway.Gateway;
 import omero.gateway.LoginCredentials;
 import omero.gateway.SecurityContext;
@@ -33,30 +57,41 @@ import omero.gateway.facility.AdminFacility;
 import omero.gateway.facility.BrowseFacility;
 import omero.gateway.facility.DataManagerFacility;
 import omero.gateway.facility.TablesFacility;
+import omero.gateway.model.DataObject;
 import omero.gateway.model.DatasetData;
 import omero.gateway.model.ExperimenterData;
-import omero.gateway.model.FileAnnotationData;
 import omero.gateway.model.ImageData;
 import omero.gateway.model.MapAnnotationData;
 import omero.gateway.model.ProjectData;
 import omero.gateway.model.TableData;
 import omero.gateway.model.TableDataColumn;
+import omero.grid.SharedResourcesPrx;
+import omero.grid.TablePrx;
 import omero.log.Logger;
 import omero.log.SimpleLogger;
+import omero.model.Annotation;
 import omero.model.ChecksumAlgorithm;
 import omero.model.ChecksumAlgorithmI;
 import omero.model.DatasetAnnotationLink;
 import omero.model.DatasetAnnotationLinkI;
+import omero.model.DatasetI;
 import omero.model.FileAnnotation;
 import omero.model.FileAnnotationI;
+import omero.model.ILink;
+import omero.model.IObject;
+import omero.model.Image;
 import omero.model.ImageAnnotationLink;
 import omero.model.ImageAnnotationLinkI;
+import omero.model.ImageI;
+import omero.model.MapAnnotation;
 import omero.model.NamedValue;
 import omero.model.OriginalFile;
 import omero.model.OriginalFileI;
 import omero.model.ProjectAnnotationLink;
 import omero.model.ProjectAnnotationLinkI;
+import omero.model.ProjectI;
 import omero.model.enums.ChecksumAlgorithmSHA1160;
+import omero.sys.ParametersI;
 
 public class OmeroDataWriter {
 	private final ImportConfig config;
@@ -66,15 +101,77 @@ public class OmeroDataWriter {
 	private ImportLibrary library;
 	private BrowseFacility browser;
 	private AdminFacility admin;
-	RawFileStorePrx rawFileStore;
 	private DataManagerFacility dataManager;
 	private SecurityContext ctx;
+	private long userId;
 	private Gateway gateway;
 	private final LoginCredentials cred;
+	private OmeroHierarchyCache hierarchyCache;
+	private boolean annotationOnly;
+	private long startupTime;
+	private int batchSize;
+	private int uploadParallelism;
+	private OmeroUploadEngine uploadEngine;
+	private int writeBehindCapacity;
+	private OmeroWriteBehindQueue.OverflowPolicy writeBehindPolicy;
+	private OmeroWriteBehindQueue writeBehindQueue;
+	private OmeroWriteJournal journal;
+	private OmeroWriterMetrics metrics;
+	private boolean queryLookups;
+	private boolean csvStreaming;
+	private boolean fileDeduplication;
+	private boolean compressedTransfer;
+	private boolean columnarExport;
+	private List<String> jsonKeyPaths;
+	private final OmeroCSVSerializer csvSerializer;
+	private final OmeroColumnarSerializer columnarSerializer;
+	private final OmeroChunkedUploader uploader;
 
 	private static int INC = 262144;
 	private static String JSON_FILEANN_NS = "micro-meta-app.json";
 	private static String JSON_FILETYPE = "application/json";
+	private static String GZIP_FILETYPE = "application/gzip";
+	private static String GZIP_SUFFIX = ".gz";
+	private static String COLUMNAR_FILETYPE = "application/x-omero-columnar";
+	private static String COLUMNAR_SUFFIX = ".omcf";
+	private static int QUERY_BATCH_SIZE = 1000;
+	private static int DEFAULT_BATCH_SIZE = 500;
+	private static int DEFAULT_UPLOAD_PARALLELISM = 4;
+	private static int DEFAULT_WRITE_BEHIND_CAPACITY = 10000;
+	private static long MAPPED_UPLOAD_SIZE = 67108864;
+	private static int TABLE_BATCH_ROWS = 65536;
+	private static int CSV_SEGMENT_ROWS = 4096;
+	private static String JOURNAL_FILE = "file";
+	private static String JOURNAL_TABLE = "table";
+	private static String JOURNAL_CSV = "csv";
+	private static String JOURNAL_COLUMNAR = "columnar";
+	private static String JOURNAL_ORIGINAL_FILE = "originalFile";
+	private static String JOURNAL_ANNOTATION = "annotation";
+	private static String JOURNAL_MAP_ANNOTATION = "mapAnnotation";
+	private static String IMAGE_INFORMATION_QUERY = "select i.id, i.name,"
+			+ " d.id, d.name, p.id, p.name from Image i join i.datasetLinks dl join dl.parent d"
+			+ " join d.projectLinks pl join pl.parent p"
+			+ " where i.id in (:ids) order by p.id, d.id";
+	private static String MAP_ANNOTATION_QUERY = "select m from MapAnnotation m"
+			+ " left outer join fetch m.mapValue where m.id in (:ids)";
+	private static String FILE_QUERY = "select fa from FileAnnotation fa"
+			+ " join fetch fa.file f where fa.ns = :ns and f.hash = :hash"
+			+ " and fa.details.group.id = :gid and fa.details.owner.id = :oid"
+			+ " order by fa.id";
+	private static String PROJECT_ID_QUERY = "select p.id from Project p"
+			+ " where p.name = :name order by p.id";
+	private static String DATASET_ID_QUERY = "select l.child.id"
+			+ " from ProjectDatasetLink l where l.parent.id = :parent"
+			+ " and l.child.name = :name order by l.child.id";
+	private static String IMAGE_ID_QUERY = "select l.child.id"
+			+ " from DatasetImageLink l where l.parent.id = :parent"
+			+ " and l.child.name = :name order by l.child.id";
+	private static String FILE_ANNOTATION_QUERY = "select fa"
+			+ " from FileAnnotation fa join fetch fa.file where fa.id = :id";
+	private static String LINKED_FILE_QUERY = "select fa from FileAnnotation fa"
+			+ " join fetch fa.file f, ImageAnnotationLink l"
+			+ " where l.child.id = fa.id and l.parent.id = :id"
+			+ " and fa.ns = :ns and f.hash = :hash";
 	
 	public OmeroDataWriter(final String hostName_arg, final Integer port_arg,
 			final String userName_arg, final String psw_arg) {
@@ -98,53 +195,90 @@ public class OmeroDataWriter {
 		this.config.password.set(psw);
 		
 		this.cred = new LoginCredentials(userName, psw, hostName, port);
+		this.hierarchyCache = new OmeroHierarchyCache();
+		this.batchSize = OmeroDataWriter.DEFAULT_BATCH_SIZE;
+		this.uploadParallelism = OmeroDataWriter.DEFAULT_UPLOAD_PARALLELISM;
+		this.writeBehindCapacity = OmeroDataWriter.DEFAULT_WRITE_BEHIND_CAPACITY;
+		this.writeBehindPolicy = OmeroWriteBehindQueue.OverflowPolicy.BLOCK;
+		this.uploader = new OmeroChunkedUploader(OmeroDataWriter.INC);
+		this.csvStreaming = true;
+		this.metrics = OmeroWriterMetrics.NONE;
+		this.queryLookups = true;
+		this.csvSerializer = new OmeroCSVSerializer(ForkJoinPool.commonPool(),
+				OmeroDataWriter.CSV_SEGMENT_ROWS);
+		this.columnarSerializer = new OmeroColumnarSerializer(
+				ForkJoinPool.commonPool(), OmeroDataWriter.TABLE_BATCH_ROWS);
 	}
 	
 	public void init() throws Exception {
-		this.store = this.config.createStore();
-		this.store.logVersionInfo(this.config.getIniVersionNumber());
-		this.reader = new OMEROWrapper(this.config);
-		this.library = new ImportLibrary(this.store, this.reader);
-		this.handler = new ErrorHandler(this.config);
-		this.library.addObserver(new LoggingImportMonitor());
-		
 		final Logger simpleLogger = new SimpleLogger();
-		this.gateway = new Gateway(simpleLogger);
+		this.init(new Gateway(simpleLogger));
+	}
+	
+	public void init(final Gateway gateway) throws Exception {
+		final long start = System.nanoTime();
+		this.gateway = gateway;
 		this.browser = this.gateway.getFacility(BrowseFacility.class);
 		this.admin = this.gateway.getFacility(AdminFacility.class);
 		this.dataManager = this.gateway.getFacility(DataManagerFacility.class);
 		
 		final ExperimenterData user = this.gateway.connect(this.cred);
 		this.ctx = new SecurityContext(user.getGroupId());
-
-		this.rawFileStore = this.gateway.getRawFileService(this.ctx);
+		this.userId = user.getId();
+		this.startupTime = System.nanoTime() - start;
 	}
 	
-	private ImageData retrieveImage(final String imageName,
-			final DatasetData dataset)
-			throws DSOutOfServiceException, DSAccessException {
-		final List<Long> datasetIDs = new ArrayList<Long>();
-		datasetIDs.add(dataset.getId());
-		final Collection<ImageData> images = this.browser
-				.getImagesForDatasets(this.ctx, datasetIDs);
-		
-		final Iterator<ImageData> i = images.iterator();
-		ImageData image;
-		while (i.hasNext()) {
-			image = i.next();
-			if (image.getName().equals(imageName))
-				return image;
-		}
-		
-		return null;
+	// The importer logs in a second session, it is only created the first
+	// time an import related method needs it
+	private synchronized void initImporter() throws Exception {
+		if (this.annotationOnly)
+			throw new IllegalStateException(
+					"The importer is not available in annotation only mode");
+		if (this.library != null)
+			return;
+		this.store = this.config.createStore();
+		this.store.logVersionInfo(this.config.getIniVersionNumber());
+		this.reader = new OMEROWrapper(this.config);
+		this.library = new ImportLibrary(this.store, this.reader);
+		this.handler = new ErrorHandler(this.config);
+		this.library.addObserver(new LoggingImportMonitor());
+	}
+	
+	ImportConfig getImportConfig() {
+		return this.config;
+	}
+	
+	public ImportLibrary getImportLibrary() throws Exception {
+		this.initImporter();
+		return this.library;
+	}
+	
+	public void setAnnotationOnly(final boolean annotationOnly) {
+		this.annotationOnly = annotationOnly;
+	}
+	
+	public boolean isAnnotationOnly() {
+		return this.annotationOnly;
+	}
+	
+	public long getStartupTime() {
+		return TimeUnit.NANOSECONDS.toMillis(this.startupTime);
 	}
 	
 	private ProjectData retrieveProject(final Long id)
 			throws DSOutOfServiceException, DSAccessException {
 		final List<Long> IDs = new ArrayList<Long>();
 		IDs.add(id);
-		final Collection<ProjectData> projects = this.browser
-				.getProjects(this.ctx, IDs);
+		final long start = System.nanoTime();
+		final Collection<ProjectData> projects;
+		try {
+			projects = this.browser.getProjects(this.ctx, IDs);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.RETRIEVE_PROJECT);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.RETRIEVE_PROJECT,
+				System.nanoTime() - start);
 		final Iterator<ProjectData> i = projects.iterator();
 		ProjectData project;
 		while (i.hasNext()) {
@@ -158,8 +292,16 @@ public class OmeroDataWriter {
 			throws DSOutOfServiceException, DSAccessException {
 		final List<Long> IDs = new ArrayList<Long>();
 		IDs.add(id);
-		final Collection<DatasetData> datasets = this.browser
-				.getDatasets(this.ctx, IDs);
+		final long start = System.nanoTime();
+		final Collection<DatasetData> datasets;
+		try {
+			datasets = this.browser.getDatasets(this.ctx, IDs);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.RETRIEVE_DATASET);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.RETRIEVE_DATASET,
+				System.nanoTime() - start);
 		final Iterator<DatasetData> i = datasets.iterator();
 		DatasetData dataset;
 		while (i.hasNext()) {
@@ -173,8 +315,16 @@ public class OmeroDataWriter {
 			throws DSOutOfServiceException, DSAccessException {
 		final List<Long> IDs = new ArrayList<Long>();
 		IDs.add(id);
-		final Collection<ImageData> images = this.browser.getImages(this.ctx,
-				IDs);
+		final long start = System.nanoTime();
+		final Collection<ImageData> images;
+		try {
+			images = this.browser.getImages(this.ctx, IDs);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.RETRIEVE_IMAGE);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.RETRIEVE_IMAGE,
+				System.nanoTime() - start);
 		final Iterator<ImageData> i = images.iterator();
 		ImageData image;
 		while (i.hasNext()) {
@@ -184,56 +334,180 @@ public class OmeroDataWriter {
 		return null;
 	}
 	
-	private DatasetData retrieveDataset(final String datasetName,
-			final ProjectData project)
+	private Long retrieveProjectId(final String projectName)
 			throws DSOutOfServiceException, DSAccessException {
-		final List<Long> datasetIDs = this
-				.retrieveDatasetIDsFromProject(project);
-		final Collection<DatasetData> datasets = this.browser
-				.getDatasets(this.ctx, datasetIDs);
+		final Long id = this.hierarchyCache.getProjectId(projectName);
+		if (id != null)
+			return id;
+		if (this.queryLookups) {
+			final ParametersI params = new ParametersI();
+			params.add("name", omero.rtypes.rstring(projectName));
+			try {
+				final Long found = this.lookupId(
+						OmeroDataWriter.PROJECT_ID_QUERY, params);
+				if (found != null) {
+					this.hierarchyCache.putProjectId(projectName, found);
+				}
+				return found;
+			} catch (final ServerError ex) {
+				// fall back to the listing below
+			}
+		}
+		final long start = System.nanoTime();
+		final Collection<ProjectData> projects;
+		try {
+			projects = this.browser.getProjects(this.ctx);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.LIST_PROJECTS);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.LIST_PROJECTS,
+				System.nanoTime() - start);
 		
-		final Iterator<DatasetData> i = datasets.iterator();
-		DatasetData dataset;
+		// Index the whole listing, the first project with a given name wins
+		final Set<String> indexed = new HashSet<String>();
+		final Iterator<ProjectData> i = projects.iterator();
+		ProjectData project;
 		while (i.hasNext()) {
-			dataset = i.next();
-			if (dataset.getName().equals(datasetName))
-				return dataset;
+			project = i.next();
+			if (indexed.add(project.getName())) {
+				this.hierarchyCache.putProjectId(project.getName(),
+						project.getId());
+			}
+			this.indexDatasets(project);
 		}
-		return null;
+		return this.hierarchyCache.getProjectId(projectName);
 	}
 	
-	private List<Long> retrieveDatasetIDsFromProject(final ProjectData project)
+	private Long retrieveDatasetId(final String datasetName,
+			final Long projectId)
 			throws DSOutOfServiceException, DSAccessException {
-		final List<Long> datasetIDs = new ArrayList<Long>();
-		final Collection<ProjectData> projects = this.browser
-				.getProjects(this.ctx);
-		final Iterator<ProjectData> i = projects.iterator();
-		ProjectData localProject;
-		while (i.hasNext()) {
-			localProject = i.next();
-			if (localProject.getId() == project.getId()) {
-				for (final DatasetData dataset : project.getDatasets()) {
-					datasetIDs.add(dataset.getId());
+		if (projectId == null)
+			return null;
+		final Long id = this.hierarchyCache.getDatasetId(projectId,
+				datasetName);
+		if (id != null)
+			return id;
+		if (this.queryLookups) {
+			final ParametersI params = new ParametersI();
+			params.add("parent", omero.rtypes.rlong(projectId));
+			params.add("name", omero.rtypes.rstring(datasetName));
+			try {
+				final Long found = this.lookupId(
+						OmeroDataWriter.DATASET_ID_QUERY, params);
+				if (found != null) {
+					this.hierarchyCache.putDatasetId(projectId, datasetName,
+							found);
 				}
+				return found;
+			} catch (final ServerError ex) {
+				// fall back to the listing below
+			}
+		}
+		final ProjectData project = this.retrieveProject(projectId);
+		if (project == null)
+			return null;
+		this.indexDatasets(project);
+		return this.hierarchyCache.getDatasetId(projectId, datasetName);
+	}
+	
+	private void indexDatasets(final ProjectData project) {
+		final Set<String> indexed = new HashSet<String>();
+		for (final DatasetData dataset : project.getDatasets()) {
+			if (indexed.add(dataset.getName())) {
+				this.hierarchyCache.putDatasetId(project.getId(),
+						dataset.getName(), dataset.getId());
 			}
 		}
-		
-		return datasetIDs;
 	}
 	
-	private ProjectData retrieveProject(final String projectName)
+	private Long retrieveImageId(final String imageName, final Long datasetId)
 			throws DSOutOfServiceException, DSAccessException {
-		final Collection<ProjectData> projects = this.browser
-				.getProjects(this.ctx);
+		if (datasetId == null)
+			return null;
+		final Long id = this.hierarchyCache.getImageId(datasetId, imageName);
+		if (id != null)
+			return id;
+		if (this.queryLookups) {
+			final ParametersI params = new ParametersI();
+			params.add("parent", omero.rtypes.rlong(datasetId));
+			params.add("name", omero.rtypes.rstring(imageName));
+			try {
+				final Long found = this.lookupId(
+						OmeroDataWriter.IMAGE_ID_QUERY, params);
+				if (found != null) {
+					this.hierarchyCache.putImageId(datasetId, imageName,
+							found);
+				}
+				return found;
+			} catch (final ServerError ex) {
+				// fall back to the listing below
+			}
+		}
+		final List<Long> datasetIDs = new ArrayList<Long>();
+		datasetIDs.add(datasetId);
+		final long start = System.nanoTime();
+		final Collection<ImageData> images;
+		try {
+			images = this.browser.getImagesForDatasets(this.ctx, datasetIDs);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.LIST_IMAGES);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.LIST_IMAGES,
+				System.nanoTime() - start);
 		
-		final Iterator<ProjectData> i = projects.iterator();
-		ProjectData project;
+		final Set<String> indexed = new HashSet<String>();
+		final Iterator<ImageData> i = images.iterator();
+		ImageData image;
 		while (i.hasNext()) {
-			project = i.next();
-			if (project.getName().equals(projectName))
-				return project;
+			image = i.next();
+			if (indexed.add(image.getName())) {
+				this.hierarchyCache.putImageId(datasetId, image.getName(),
+						image.getId());
+			}
 		}
-		return null;
+		return this.hierarchyCache.getImageId(datasetId, imageName);
+	}
+	
+	// Lowest ID matching a name lookup query, null if there is none
+	private Long lookupId(final String hql, final ParametersI params)
+			throws DSOutOfServiceException, ServerError {
+		params.page(0, 1);
+		final IQueryPrx query = this.gateway.getQueryService(this.ctx);
+		final long start = System.nanoTime();
+		final List<List<RType>> rows;
+		try {
+			rows = query.projection(hql, params);
+		} catch (final ServerError ex) {
+			this.metrics.recordError(OmeroWriterMetrics.LOOKUP_BY_NAME);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.LOOKUP_BY_NAME,
+				System.nanoTime() - start);
+		if (rows.isEmpty() || rows.get(0).isEmpty())
+			return null;
+		return ((RLong) rows.get(0).get(0)).getValue();
+	}
+	
+	public void setQueryLookups(final boolean queryLookups) {
+		this.queryLookups = queryLookups;
+	}
+	
+	public boolean isQueryLookups() {
+		return this.queryLookups;
+	}
+	
+	public OmeroHierarchyCache getHierarchyCache() {
+		return this.hierarchyCache;
+	}
+	
+	public void setHierarchyCache(final OmeroHierarchyCache hierarchyCache) {
+		this.hierarchyCache = hierarchyCache;
+	}
+	
+	public void invalidateHierarchyCache() {
+		this.hierarchyCache.invalidate();
 	}
 	
 	private Long retrieveUserId(final String userName)
@@ -246,154 +520,1140 @@ public class OmeroDataWriter {
 	}
 	
 	public void close() {
+		// The queued writes run on this writer and take its lock, so the
+		// queue is drained without holding it
+		final OmeroWriteBehindQueue queue;
+		synchronized (this) {
+			queue = this.writeBehindQueue;
+			this.writeBehindQueue = null;
+		}
+		if (queue != null) {
+			try {
+				queue.close();
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		this.closeSessions();
+	}
+	
+	private synchronized void closeSessions() {
+		if (this.uploadEngine != null) {
+			this.uploadEngine.shutdown();
+			this.uploadEngine = null;
+		}
 		if (this.gateway != null) {
 			this.gateway.disconnect();
+			this.gateway = null;
 		}
 		if (this.store != null) {
 			this.store.logout();
+			this.store = null;
+			this.reader = null;
+			this.library = null;
+			this.handler = null;
 		}
 	}
 	
+	public boolean isAlive() {
+		if ((this.gateway == null) || !this.gateway.isConnected())
+			return false;
+		try {
+			this.gateway.getAdminService(this.ctx).getEventContext();
+			return true;
+		} catch (final Exception ex) {
+			return false;
+		}
+	}
+	
+	public void reconnect() throws Exception {
+		this.close();
+		this.init();
+	}
+	
 	public void writeDataToProject(final String projectName,
 			final String description, final Map<String, String> keyValueData)
 			throws DSOutOfServiceException, DSAccessException {
-		final ProjectData project = this.retrieveProject(projectName);
-		this.writeDataToProject(project.getId(), description, keyValueData);
+		final Long projectId = this.retrieveProjectId(projectName);
+		this.writeDataToProject(projectId, description, keyValueData);
 	}
 	
 	public void writeDataToProject(final Long id, final String description,
 			final Map<String, String> keyValueData)
 			throws DSOutOfServiceException, DSAccessException {
 		final ProjectData project = this.retrieveProject(id);
-		final List<NamedValue> result = new ArrayList<NamedValue>();
-		for (final String key : keyValueData.keySet()) {
-			result.add(new NamedValue(key, keyValueData.get(key)));
-		}
-		final MapAnnotationData data = new MapAnnotationData();
-		data.setContent(result);
-		data.setDescription(description);
-		// Use the following namespace if you want the annotation to be editable
-		// in the webclient and insight
-		data.setNameSpace(MapAnnotationData.NS_CLIENT_CREATED);
-		this.dataManager.attachAnnotation(this.ctx, data, project);
+		final MapAnnotationData data = this.createMapAnnotation(description,
+				keyValueData);
+		this.attachAnnotation(data, project);
 	}
 	
 	public void writeDataToDataset(final String projectName,
 			final String datasetName, final String description,
 			final Map<String, String> keyValueData)
 			throws DSOutOfServiceException, DSAccessException {
-		final ProjectData project = this.retrieveProject(projectName);
-		final DatasetData dataset = this.retrieveDataset(datasetName, project);
-		this.writeDataToDataset(dataset.getId(), description, keyValueData);
+		final Long projectId = this.retrieveProjectId(projectName);
+		final Long datasetId = this.retrieveDatasetId(datasetName, projectId);
+		this.writeDataToDataset(datasetId, description, keyValueData);
 	}
 	
 	public void writeDataToDataset(final Long id, final String description,
 			final Map<String, String> keyValueData)
 			throws DSOutOfServiceException, DSAccessException {
 		final DatasetData dataset = this.retrieveDataset(id);
-		final List<NamedValue> result = new ArrayList<NamedValue>();
-		for (final String key : keyValueData.keySet()) {
-			result.add(new NamedValue(key, keyValueData.get(key)));
-		}
-		final MapAnnotationData data = new MapAnnotationData();
-		data.setContent(result);
-		data.setDescription(description);
-		// Use the following namespace if you want the annotation to be editable
-		// in the webclient and insight
-		data.setNameSpace(MapAnnotationData.NS_CLIENT_CREATED);
-		this.dataManager.attachAnnotation(this.ctx, data, dataset);
+		final MapAnnotationData data = this.createMapAnnotation(description,
+				keyValueData);
+		this.attachAnnotation(data, dataset);
 	}
 	
 	public void writeDataToImage(final String projectName,
 			final String datasetName, final String imageName,
 			final String description, final Map<String, String> keyValueData)
 			throws DSOutOfServiceException, DSAccessException {
-		final ProjectData project = this.retrieveProject(projectName);
-		final DatasetData dataset = this.retrieveDataset(datasetName, project);
-		final ImageData image = this.retrieveImage(imageName, dataset);
-		this.writeDataToImage(image.getId(), description, keyValueData);
+		final Long projectId = this.retrieveProjectId(projectName);
+		final Long datasetId = this.retrieveDatasetId(datasetName, projectId);
+		final Long imageId = this.retrieveImageId(imageName, datasetId);
+		this.writeDataToImage(imageId, description, keyValueData);
 	}
 	
 	public void writeDataToImage(final Long id, final String description,
 			final Map<String, String> keyValueData)
 			throws DSOutOfServiceException, DSAccessException {
 		final ImageData image = this.retrieveImage(id);
+		final MapAnnotationData data = this.createMapAnnotation(description,
+				keyValueData);
+		this.attachAnnotation(data, image);
+	}
+	
+	private void attachAnnotation(final MapAnnotationData data,
+			final DataObject target)
+			throws DSOutOfServiceException, DSAccessException {
+		final long start = System.nanoTime();
+		try {
+			this.dataManager.attachAnnotation(this.ctx, data, target);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.ATTACH_ANNOTATION);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.ATTACH_ANNOTATION,
+				System.nanoTime() - start);
+	}
+	
+	private IObject saveAndReturnObject(final IObject object)
+			throws DSOutOfServiceException, DSAccessException {
+		final long start = System.nanoTime();
+		final IObject saved;
+		try {
+			saved = this.dataManager.saveAndReturnObject(this.ctx, object);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.SAVE_OBJECT);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.SAVE_OBJECT,
+				System.nanoTime() - start);
+		return saved;
+	}
+	
+	public OmeroBatchResult writeDataToProjects(final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException {
+		return this.writeDataToTargets(ProjectData.class, description,
+				keyValueData);
+	}
+	
+	public OmeroBatchResult writeDataToDatasets(final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException {
+		return this.writeDataToTargets(DatasetData.class, description,
+				keyValueData);
+	}
+	
+	public OmeroBatchResult writeDataToImages(final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException {
+		return this.writeDataToTargets(ImageData.class, description,
+				keyValueData);
+	}
+	
+	private OmeroBatchResult writeDataToTargets(
+			final Class<? extends DataObject> type, final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException {
+		final OmeroBatchResult result = new OmeroBatchResult();
+		final List<Long> ids = new ArrayList<Long>(keyValueData.keySet());
+		final IUpdatePrx update = this.gateway.getUpdateService(this.ctx);
+		for (int i = 0; i < ids.size(); i += this.batchSize) {
+			final List<Long> batchIDs = ids.subList(i,
+					Math.min(ids.size(), i + this.batchSize));
+			final List<IObject> links = new ArrayList<IObject>();
+			for (final Long id : batchIDs) {
+				final MapAnnotationData data = this
+						.createMapAnnotation(description, keyValueData.get(id));
+				links.add(this.createAnnotationLink(type, id,
+						data.asAnnotation()));
+			}
+			this.saveBatch(update, batchIDs, links, result);
+		}
+		return result;
+	}
+	
+	private void saveBatch(final IUpdatePrx update, final List<Long> ids,
+			final List<IObject> links, final OmeroBatchResult result) {
+		final long start = System.nanoTime();
+		try {
+			final List<IObject> saved = update.saveAndReturnArray(links);
+			this.metrics.recordLatency(OmeroWriterMetrics.SAVE_ARRAY,
+					System.nanoTime() - start);
+			this.metrics.addRows(OmeroWriterMetrics.SAVE_ARRAY, saved.size());
+			for (int i = 0; i < saved.size(); i++) {
+				result.addWritten(ids.get(i),
+						OmeroDataWriter.getWrittenId(saved.get(i)));
+			}
+		} catch (final ServerError ex) {
+			this.metrics.recordError(OmeroWriterMetrics.SAVE_ARRAY);
+			// Save the batch one object at a time to isolate the failing items
+			for (int i = 0; i < links.size(); i++) {
+				final long itemStart = System.nanoTime();
+				try {
+					final IObject saved = update
+							.saveAndReturnObject(links.get(i));
+					this.metrics.recordLatency(OmeroWriterMetrics.SAVE_OBJECT,
+							System.nanoTime() - itemStart);
+					result.addWritten(ids.get(i),
+							OmeroDataWriter.getWrittenId(saved));
+				} catch (final ServerError ex2) {
+					this.metrics.recordError(OmeroWriterMetrics.SAVE_OBJECT);
+					result.addFailure(ids.get(i), ex2);
+				}
+			}
+		}
+	}
+	
+	private static Long getWrittenId(final IObject saved) {
+		// for links report the annotation rather than the link itself
+		if (saved instanceof ILink)
+			return ((ILink) saved).getChild().getId().getValue();
+		return saved.getId().getValue();
+	}
+	
+	public void upsertDataToProject(final Long id, final String description,
+			final Map<String, String> keyValueData)
+			throws DSOutOfServiceException, DSAccessException {
+		OmeroDataWriter.checkResult(this.upsertDataToTargets(
+				ProjectData.class, description,
+				Collections.singletonMap(id, keyValueData)));
+	}
+	
+	public void upsertDataToDataset(final Long id, final String description,
+			final Map<String, String> keyValueData)
+			throws DSOutOfServiceException, DSAccessException {
+		OmeroDataWriter.checkResult(this.upsertDataToTargets(
+				DatasetData.class, description,
+				Collections.singletonMap(id, keyValueData)));
+	}
+	
+	public void upsertDataToImage(final Long id, final String description,
+			final Map<String, String> keyValueData)
+			throws DSOutOfServiceException, DSAccessException {
+		OmeroDataWriter.checkResult(this.upsertDataToTargets(ImageData.class,
+				description, Collections.singletonMap(id, keyValueData)));
+	}
+	
+	public OmeroBatchResult upsertDataToProjects(final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.upsertDataToTargets(ProjectData.class, description,
+				keyValueData);
+	}
+	
+	public OmeroBatchResult upsertDataToDatasets(final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.upsertDataToTargets(DatasetData.class, description,
+				keyValueData);
+	}
+	
+	public OmeroBatchResult upsertDataToImages(final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.upsertDataToTargets(ImageData.class, description,
+				keyValueData);
+	}
+	
+	private static void checkResult(final OmeroBatchResult result)
+			throws DSAccessException {
+		if (!result.isSuccessful())
+			throw new DSAccessException("Cannot write the annotation",
+					result.getFailures().values().iterator().next());
+	}
+	
+	private OmeroBatchResult upsertDataToTargets(
+			final Class<? extends DataObject> type, final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws DSOutOfServiceException, DSAccessException {
+		final OmeroBatchResult result = new OmeroBatchResult();
+		final Map<Long, MapAnnotation> existing = this
+				.retrieveMapAnnotations(type, description, keyValueData.keySet());
+		
+		// Only annotations whose content differs are sent back
+		final List<Long> updatedIDs = new ArrayList<Long>();
+		final List<IObject> updated = new ArrayList<IObject>();
+		final List<Long> createdIDs = new ArrayList<Long>();
+		final List<IObject> created = new ArrayList<IObject>();
+		for (final Map.Entry<Long, Map<String, String>> entry : keyValueData
+				.entrySet()) {
+			final MapAnnotation annotation = existing.get(entry.getKey());
+			if (annotation == null) {
+				createdIDs.add(entry.getKey());
+				created.add(this.createAnnotationLink(type, entry.getKey(),
+						this.createMapAnnotation(description, entry.getValue())
+								.asAnnotation()));
+				continue;
+			}
+			if (OmeroDataWriter.toMap(annotation.getMapValue())
+					.equals(entry.getValue())) {
+				result.addWritten(entry.getKey(),
+						annotation.getId().getValue());
+				continue;
+			}
+			final List<NamedValue> content = new ArrayList<NamedValue>();
+			for (final Map.Entry<String, String> value : entry.getValue()
+					.entrySet()) {
+				content.add(new NamedValue(value.getKey(), value.getValue()));
+			}
+			annotation.setMapValue(content);
+			updatedIDs.add(entry.getKey());
+			updated.add(annotation);
+		}
+		
+		final IUpdatePrx update = this.gateway.getUpdateService(this.ctx);
+		for (int i = 0; i < updated.size(); i += this.batchSize) {
+			final int end = Math.min(updated.size(), i + this.batchSize);
+			this.saveBatch(update, updatedIDs.subList(i, end),
+					updated.subList(i, end), result);
+		}
+		for (int i = 0; i < created.size(); i += this.batchSize) {
+			final int end = Math.min(created.size(), i + this.batchSize);
+			this.saveBatch(update, createdIDs.subList(i, end),
+					created.subList(i, end), result);
+		}
+		return result;
+	}
+	
+	private Map<Long, MapAnnotation> retrieveMapAnnotations(
+			final Class<? extends DataObject> type, final String description,
+			final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		final Map<Long, MapAnnotation> annotations = new LinkedHashMap<Long, MapAnnotation>();
+		final IQueryPrx query = this.gateway.getQueryService(this.ctx);
+		final String linkQuery = "select l.parent.id, m.id from "
+				+ OmeroDataWriter.getLinkClass(type) + " l, MapAnnotation m"
+				+ " where l.child.id = m.id and m.ns = :ns"
+				+ (description == null ? " and m.description is null"
+						: " and m.description = :desc")
+				+ " and l.parent.id in (:ids) order by m.id";
+		final List<Long> targetIDs = new ArrayList<Long>(ids);
+		try {
+			for (int i = 0; i < targetIDs
+					.size(); i += OmeroDataWriter.QUERY_BATCH_SIZE) {
+				final ParametersI params = new ParametersI();
+				params.addIds(targetIDs.subList(i, Math.min(targetIDs.size(),
+						i + OmeroDataWriter.QUERY_BATCH_SIZE)));
+				params.add("ns", omero.rtypes
+						.rstring(MapAnnotationData.NS_CLIENT_CREATED));
+				if (description != null) {
+					params.add("desc", omero.rtypes.rstring(description));
+				}
+				// the oldest matching annotation of each target is kept
+				final Map<Long, Long> annotationIDs = new LinkedHashMap<Long, Long>();
+				for (final List<RType> row : query.projection(linkQuery,
+						params)) {
+					final Long targetId = ((RLong) row.get(0)).getValue();
+					if (!annotationIDs.containsKey(targetId)) {
+						annotationIDs.put(targetId,
+								((RLong) row.get(1)).getValue());
+					}
+				}
+				if (annotationIDs.isEmpty()) {
+					continue;
+				}
+				
+				final ParametersI annotationParams = new ParametersI();
+				annotationParams.addIds(annotationIDs.values());
+				final Map<Long, MapAnnotation> loaded = new HashMap<Long, MapAnnotation>();
+				for (final IObject object : query.findAllByQuery(
+						OmeroDataWriter.MAP_ANNOTATION_QUERY,
+						annotationParams)) {
+					loaded.put(object.getId().getValue(),
+							(MapAnnotation) object);
+				}
+				for (final Map.Entry<Long, Long> entry : annotationIDs
+						.entrySet()) {
+					annotations.put(entry.getKey(),
+							loaded.get(entry.getValue()));
+				}
+			}
+		} catch (final ServerError ex) {
+			throw new DSAccessException("Cannot retrieve map annotations", ex);
+		}
+		return annotations;
+	}
+	
+	public Map<String, String> readDataFromProject(final String projectName,
+			final String description)
+			throws DSOutOfServiceException, DSAccessException {
+		final Long projectId = this.retrieveProjectId(projectName);
+		return this.readDataFromProjects(description,
+				Collections.singletonList(projectId)).get(projectId);
+	}
+	
+	public Map<String, String> readDataFromDataset(final String projectName,
+			final String datasetName, final String description)
+			throws DSOutOfServiceException, DSAccessException {
+		final Long projectId = this.retrieveProjectId(projectName);
+		final Long datasetId = this.retrieveDatasetId(datasetName, projectId);
+		return this.readDataFromDatasets(description,
+				Collections.singletonList(datasetId)).get(datasetId);
+	}
+	
+	public Map<String, String> readDataFromImage(final String projectName,
+			final String datasetName, final String imageName,
+			final String description)
+			throws DSOutOfServiceException, DSAccessException {
+		final Long projectId = this.retrieveProjectId(projectName);
+		final Long datasetId = this.retrieveDatasetId(datasetName, projectId);
+		final Long imageId = this.retrieveImageId(imageName, datasetId);
+		return this.readDataFromImages(description,
+				Collections.singletonList(imageId)).get(imageId);
+	}
+	
+	public Map<Long, Map<String, String>> readDataFromProjects(
+			final String description, final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.readDataFromTargets(ProjectData.class, description, ids);
+	}
+	
+	public Map<Long, Map<String, String>> readDataFromDatasets(
+			final String description, final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.readDataFromTargets(DatasetData.class, description, ids);
+	}
+	
+	public Map<Long, Map<String, String>> readDataFromImages(
+			final String description, final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.readDataFromTargets(ImageData.class, description, ids);
+	}
+	
+	// Reads back the annotations the upserts would update: the oldest map
+	// annotation with the description on each target, targets without one
+	// are left out of the result
+	private Map<Long, Map<String, String>> readDataFromTargets(
+			final Class<? extends DataObject> type, final String description,
+			final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		final long start = System.nanoTime();
+		final Map<Long, MapAnnotation> annotations;
+		try {
+			annotations = this.retrieveMapAnnotations(type, description, ids);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.READ_ANNOTATIONS);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.READ_ANNOTATIONS,
+				System.nanoTime() - start);
+		this.metrics.addRows(OmeroWriterMetrics.READ_ANNOTATIONS,
+				annotations.size());
+		final Map<Long, Map<String, String>> data = new LinkedHashMap<Long, Map<String, String>>();
+		for (final Map.Entry<Long, MapAnnotation> entry : annotations
+				.entrySet()) {
+			data.put(entry.getKey(),
+					OmeroDataWriter.toMap(entry.getValue().getMapValue()));
+		}
+		return data;
+	}
+	
+	private static Map<String, String> toMap(final List<NamedValue> values) {
+		final Map<String, String> map = new LinkedHashMap<String, String>();
+		if (values != null) {
+			for (final NamedValue value : values) {
+				map.put(value.name, value.value);
+			}
+		}
+		return map;
+	}
+	
+	private static String getLinkClass(final Class<? extends DataObject> type) {
+		if (ProjectData.class.equals(type))
+			return "ProjectAnnotationLink";
+		if (DatasetData.class.equals(type))
+			return "DatasetAnnotationLink";
+		if (ImageData.class.equals(type))
+			return "ImageAnnotationLink";
+		throw new IllegalArgumentException(
+				"Unsupported annotation target " + type.getName());
+	}
+	
+	private MapAnnotationData createMapAnnotation(final String description,
+			final Map<String, String> keyValueData) {
+		final MapAnnotationData data = this.createMapAnnotation(keyValueData);
+		data.setDescription(description);
+		// Use the following namespace if you want the annotation to be editable
+		// in the webclient and insight
+		data.setNameSpace(MapAnnotationData.NS_CLIENT_CREATED);
+		return data;
+	}
+	
+	private MapAnnotationData createMapAnnotation(
+			final Map<String, String> keyValueData) {
 		final List<NamedValue> result = new ArrayList<NamedValue>();
 		for (final String key : keyValueData.keySet()) {
 			result.add(new NamedValue(key, keyValueData.get(key)));
 		}
 		final MapAnnotationData data = new MapAnnotationData();
 		data.setContent(result);
-		data.setDescription(description);
-		// Use the following namespace if you want the annotation to be editable
-		// in the webclient and insight
-		data.setNameSpace(MapAnnotationData.NS_CLIENT_CREATED);
-		this.dataManager.attachAnnotation(this.ctx, data, image);
+		return data;
+	}
+	
+	private IObject createAnnotationLink(final Class<? extends DataObject> type,
+			final Long parentId, final Annotation child) {
+		if (ProjectData.class.equals(type)) {
+			final ProjectAnnotationLink link = new ProjectAnnotationLinkI();
+			link.setParent(new ProjectI(parentId, false));
+			link.setChild(child);
+			return link;
+		}
+		if (DatasetData.class.equals(type)) {
+			final DatasetAnnotationLink link = new DatasetAnnotationLinkI();
+			link.setParent(new DatasetI(parentId, false));
+			link.setChild(child);
+			return link;
+		}
+		if (ImageData.class.equals(type)) {
+			final ImageAnnotationLink link = new ImageAnnotationLinkI();
+			link.setParent(new ImageI(parentId, false));
+			link.setChild(child);
+			return link;
+		}
+		throw new IllegalArgumentException(
+				"Unsupported annotation target " + type.getName());
+	}
+	
+	public void setBatchSize(final int batchSize) {
+		if (batchSize < 1)
+			throw new IllegalArgumentException(
+					"The batch size must be at least 1, not " + batchSize);
+		this.batchSize = batchSize;
+	}
+	
+	public int getBatchSize() {
+		return this.batchSize;
 	}
 
 	public void writeFileAnnotationToImage(final Long id, final File f)
 			throws DSOutOfServiceException, DSAccessException,
 			FileNotFoundException, IOException, ServerError {
+		this.writeFileAnnotationToImage(id, f, OmeroDataWriter.JSON_FILEANN_NS,
+				OmeroDataWriter.JSON_FILETYPE);
+	}
+	
+	public FileAnnotation writeFileAnnotationToImage(final Long id, final File f,
+			final String ns, final String mimetype)
+			throws DSOutOfServiceException, DSAccessException,
+			FileNotFoundException, IOException, ServerError {
 		final ImageData image = this.retrieveImage(id);
-		final FileAnnotationData data = new FileAnnotationData(f);
-		data.setNameSpace("micro-meta-app.json");
-		// this.dataManager.attachAnnotation(this.ctx, data, image);
-
+		return this.writeFileAnnotation(image.asImage(), f, ns, mimetype);
+	}
+	
+	public List<Future<FileAnnotation>> writeFileAnnotationsToImage(
+			final Long id, final Collection<File> files)
+			throws DSOutOfServiceException, DSAccessException {
+		final ImageData image = this.retrieveImage(id);
+		final OmeroUploadEngine engine = this.getUploadEngine();
+		final List<Future<FileAnnotation>> futures = new ArrayList<Future<FileAnnotation>>();
+		for (final File f : files) {
+			futures.add(engine.submit(
+					() -> this.writeFileAnnotation(image.asImage(), f,
+							OmeroDataWriter.JSON_FILEANN_NS,
+							OmeroDataWriter.JSON_FILETYPE)));
+		}
+		return futures;
+	}
+	
+	private FileAnnotation writeFileAnnotation(final Image image,
+			final File f, final String ns, final String mimetype)
+			throws DSOutOfServiceException, DSAccessException,
+			FileNotFoundException, IOException, ServerError {
+		if (this.fileDeduplication) {
+			final FileAnnotation existing = this.findFileAnnotation(image, f,
+					OmeroDataWriter.sha1(f, this.compressedTransfer), ns,
+					mimetype);
+			if (existing != null)
+				return existing;
+		}
+		
 		final String name = f.getName();
 		final String absolutePath = f.getAbsolutePath();
 		final String path = absolutePath.substring(0,
 				absolutePath.length() - name.length());
+		final long op = this.beginJournal(OmeroDataWriter.JOURNAL_FILE,
+				ImageData.class, image.getId().getValue(), absolutePath, ns,
+				mimetype);
+		final MessageDigest digest = OmeroDataWriter.createSHA1();
+		// Key paths are picked out of JSON documents as they are read for
+		// the upload
+		final OmeroJsonMetadataExtractor extractor = this
+				.createJsonExtractor(mimetype);
+		OriginalFile originalFile;
+		if (this.compressedTransfer) {
+			// The size is set by the server when the raw file store is saved
+			originalFile = this.createOriginalFile(
+					name + OmeroDataWriter.GZIP_SUFFIX, path, 0,
+					OmeroDataWriter.GZIP_FILETYPE);
+			this.recordJournal(op, OmeroDataWriter.JOURNAL_ORIGINAL_FILE,
+					originalFile);
+			
+			// Compress while reading, hashing the bytes the server receives
+			originalFile = this.uploadOriginalFile(originalFile, out -> {
+				try (InputStream stream = extractor != null
+						? extractor.wrap(new FileInputStream(f))
+						: new FileInputStream(f);
+						OutputStream gzip = new GZIPOutputStream(
+								new DigestOutputStream(out, digest),
+								OmeroDataWriter.INC)) {
+					OmeroDataWriter.copy(stream, gzip);
+				}
+			});
+		} else {
+			originalFile = this.createOriginalFile(name, path, f.length(),
+					mimetype);
+			this.recordJournal(op, OmeroDataWriter.JOURNAL_ORIGINAL_FILE,
+					originalFile);
+			
+			// Read the file, hashing it on the way
+			if (extractor != null) {
+				try (InputStream stream = extractor.wrap(new DigestInputStream(
+						new FileInputStream(f), digest))) {
+					originalFile = this.uploadOriginalFile(originalFile,
+							stream);
+				}
+			} else {
+				originalFile = this.uploadOriginalFile(originalFile, f,
+						digest);
+			}
+		}
+		final String hash = OmeroDataWriter.toHex(digest.digest());
+		if ((originalFile.getHash() != null)
+				&& !hash.equals(originalFile.getHash().getValue()))
+			throw new IOException("Checksum mismatch after uploading "
+					+ f.getAbsolutePath());
+		
+		FileAnnotation fa = new FileAnnotationI();
+		fa.setFile(originalFile);
+		// fa.setDescription(omero.rtypes.rstring(description));
+		fa.setNs(omero.rtypes.rstring(ns));
+		fa = (FileAnnotation) this.saveAndReturnObject(fa);
+		this.recordJournal(op, OmeroDataWriter.JOURNAL_ANNOTATION, fa);
+		
+		// now link the image and the annotation
+		ImageAnnotationLink link = new ImageAnnotationLinkI();
+		link.setChild(fa);
+		link.setParent(image);
+		// save the link back to the server.
+		link = (ImageAnnotationLink) this.saveAndReturnObject(link);
+		
+		// The key path values are part of the operation, a recovery writes
+		// them again if they were not saved
+		if (extractor != null) {
+			this.writeJsonValues(image, extractor, op);
+		}
+		this.completeJournal(op);
+		return fa;
+	}
+	
+	private OmeroJsonMetadataExtractor createJsonExtractor(
+			final String mimetype) {
+		if ((this.jsonKeyPaths == null)
+				|| !OmeroDataWriter.JSON_FILETYPE.equals(mimetype))
+			return null;
+		return new OmeroJsonMetadataExtractor(this.jsonKeyPaths);
+	}
+	
+	private void writeJsonValues(final Image image,
+			final OmeroJsonMetadataExtractor extractor, final long op)
+			throws DSOutOfServiceException, DSAccessException, IOException {
+		// A document that could not be parsed is only kept as a file
+		if (!extractor.isComplete() || extractor.getValues().isEmpty())
+			return;
+		final MapAnnotationData data = this
+				.createMapAnnotation(extractor.getValues());
+		data.setNameSpace(OmeroDataWriter.JSON_FILEANN_NS);
+		final ILink link = (ILink) this.saveAndReturnObject(
+				this.createAnnotationLink(ImageData.class,
+						image.getId().getValue(), data.asAnnotation()));
+		this.recordJournal(op, OmeroDataWriter.JOURNAL_MAP_ANNOTATION,
+				link.getChild());
+	}
+	
+	private FileAnnotation findFileAnnotation(final Image image,
+			final File f, final String hash, final String ns,
+			final String mimetype)
+			throws DSOutOfServiceException, DSAccessException, IOException {
+		final IQueryPrx query = this.gateway.getQueryService(this.ctx);
+		List<IObject> found;
+		try {
+			// Already attached to the image, nothing to do
+			final ParametersI linkedParams = OmeroDataWriter
+					.createFileParameters(hash, ns);
+			linkedParams.addId(image.getId().getValue());
+			found = query.findAllByQuery(OmeroDataWriter.LINKED_FILE_QUERY,
+					linkedParams);
+			if (!found.isEmpty())
+				return (FileAnnotation) found.get(0);
+			
+			// Uploaded for another target by the same user in the same
+			// group, link the same annotation
+			final ParametersI params = OmeroDataWriter.createFileParameters(hash,
+					ns);
+			params.add("gid", omero.rtypes.rlong(this.ctx.getGroupID()));
+			params.add("oid", omero.rtypes.rlong(this.userId));
+			found = query.findAllByQuery(OmeroDataWriter.FILE_QUERY, params);
+			if (found.isEmpty())
+				return null;
+		} catch (final ServerError ex) {
+			throw new DSAccessException("Cannot look up file annotations", ex);
+		}
+		final FileAnnotation fa = (FileAnnotation) found.get(0);
+		final ImageAnnotationLink link = new ImageAnnotationLinkI();
+		link.setChild(new FileAnnotationI(fa.getId().getValue(), false));
+		link.setParent(image);
+		this.saveAndReturnObject(link);
+		
+		// The key path values of the new image come from the local copy
+		final OmeroJsonMetadataExtractor extractor = this
+				.createJsonExtractor(mimetype);
+		if (extractor != null) {
+			Files.copy(f.toPath(), extractor);
+			this.writeJsonValues(image, extractor, -1);
+		}
+		return fa;
+	}
+	
+	private static ParametersI createFileParameters(final String hash,
+			final String ns) {
+		final ParametersI params = new ParametersI();
+		params.add("hash", omero.rtypes.rstring(hash));
+		params.add("ns", omero.rtypes.rstring(ns));
+		params.page(0, 1);
+		return params;
+	}
+	
+	private static String sha1(final File f, final boolean compressed)
+			throws IOException {
+		final MessageDigest digest = OmeroDataWriter.createSHA1();
+		if (compressed) {
+			// The gzip header has no timestamp, the same content always
+			// compresses to the same bytes
+			try (FileInputStream stream = new FileInputStream(f);
+					OutputStream gzip = new GZIPOutputStream(
+							new DigestOutputStream(new OutputStream() {
+								@Override
+								public void write(final int b) {
+									// only the digest is needed
+								}
+								
+								@Override
+								public void write(final byte[] b,
+										final int off, final int len) {
+									// only the digest is needed
+								}
+							}, digest), OmeroDataWriter.INC)) {
+				OmeroDataWriter.copy(stream, gzip);
+			}
+			return OmeroDataWriter.toHex(digest.digest());
+		}
+		final byte[] buf = new byte[OmeroDataWriter.INC];
+		try (FileInputStream stream = new FileInputStream(f)) {
+			int rlen;
+			while ((rlen = stream.read(buf)) > 0) {
+				digest.update(buf, 0, rlen);
+			}
+		}
+		return OmeroDataWriter.toHex(digest.digest());
+	}
+	
+	private static void copy(final InputStream in, final OutputStream out)
+			throws IOException {
+		final byte[] buf = new byte[OmeroDataWriter.INC];
+		int rlen;
+		while ((rlen = in.read(buf)) > 0) {
+			out.write(buf, 0, rlen);
+		}
+	}
+	
+	private static MessageDigest createSHA1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (final NoSuchAlgorithmException ex) {
+			// every JVM is required to provide SHA-1
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	private static String toHex(final byte[] bytes) {
+		final StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (final byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+			sb.append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+	
+	public void setFileDeduplication(final boolean fileDeduplication) {
+		this.fileDeduplication = fileDeduplication;
+	}
+	
+	public boolean isFileDeduplication() {
+		return this.fileDeduplication;
+	}
+	
+	public void setCompressedTransfer(final boolean compressedTransfer) {
+		this.compressedTransfer = compressedTransfer;
+	}
+	
+	public boolean isCompressedTransfer() {
+		return this.compressedTransfer;
+	}
+	
+	// Null turns the extraction off, see OmeroJsonMetadataExtractor for the
+	// path syntax
+	public void setJsonKeyPaths(final Collection<String> jsonKeyPaths) {
+		this.jsonKeyPaths = jsonKeyPaths == null || jsonKeyPaths.isEmpty()
+				? null : new ArrayList<String>(jsonKeyPaths);
+	}
+	
+	public List<String> getJsonKeyPaths() {
+		return this.jsonKeyPaths;
+	}
+	
+	// Compressed uploads are decompressed on the way
+	public InputStream openFileAnnotation(final Long annotationId)
+			throws DSOutOfServiceException, DSAccessException, IOException,
+			ServerError {
+		final IQueryPrx query = this.gateway.getQueryService(this.ctx);
+		final List<IObject> found = query.findAllByQuery(
+				OmeroDataWriter.FILE_ANNOTATION_QUERY,
+				new ParametersI().addId(annotationId));
+		if (found.isEmpty())
+			throw new DSAccessException(
+					"No file annotation with ID " + annotationId, null);
+		final OriginalFile originalFile = ((FileAnnotation) found.get(0))
+				.getFile();
+		
+		final OmeroUploadEngine engine = this.getUploadEngine();
+		final RawFileStorePrx rawFileStore = engine.acquire(this.ctx);
+		InputStream stream = null;
+		try {
+			rawFileStore.setFileId(originalFile.getId().getValue());
+			stream = new OmeroRawFileInputStream(rawFileStore,
+					rawFileStore.size(), this.uploader.getChunkSize(),
+					() -> engine.release(this.ctx, rawFileStore, true));
+			if (OmeroDataWriter.isCompressed(originalFile))
+				return new GZIPInputStream(stream, OmeroDataWriter.INC);
+			return stream;
+		} catch (final ServerError | IOException | RuntimeException ex) {
+			if (stream != null) {
+				stream.close();
+			} else {
+				engine.release(this.ctx, rawFileStore, false);
+			}
+			throw ex;
+		}
+	}
+	
+	private static boolean isCompressed(final OriginalFile originalFile) {
+		if ((originalFile.getMimetype() != null)
+				&& OmeroDataWriter.GZIP_FILETYPE
+						.equals(originalFile.getMimetype().getValue()))
+			return true;
+		return (originalFile.getName() != null) && originalFile.getName()
+				.getValue().endsWith(OmeroDataWriter.GZIP_SUFFIX);
+	}
+	
+	private OriginalFile createOriginalFile(final String name,
+			final String path, final long size, final String mimetype)
+			throws DSOutOfServiceException, DSAccessException {
 		// create the original file object.
-		OriginalFile originalFile = new OriginalFileI();
-		originalFile.setName(omero.rtypes.rstring(f.getName()));
+		final OriginalFile originalFile = new OriginalFileI();
+		originalFile.setName(omero.rtypes.rstring(name));
 		originalFile.setPath(omero.rtypes.rstring(path));
-		originalFile.setSize(omero.rtypes.rlong(f.length()));
+		originalFile.setSize(omero.rtypes.rlong(size));
 		final ChecksumAlgorithm checksumAlgorithm = new ChecksumAlgorithmI();
 		checksumAlgorithm
 				.setValue(omero.rtypes.rstring(ChecksumAlgorithmSHA1160.value));
 		originalFile.setHasher(checksumAlgorithm);
-		originalFile.setMimetype(
-				omero.rtypes.rstring(OmeroDataWriter.JSON_FILETYPE));
+		originalFile.setMimetype(omero.rtypes.rstring(mimetype));
 		// Now we save the originalFile object
-		originalFile = (OriginalFile) this.dataManager
-				.saveAndReturnObject(this.ctx, originalFile);
-
-		// Initialize the service to load the raw data
-		final RawFileStorePrx rawFileStore = this.gateway
-				.getRawFileService(this.ctx);
-
-		long pos = 0;
-		int rlen;
-		final byte[] buf = new byte[OmeroDataWriter.INC];
-		ByteBuffer bbuf;
-		// Open file and read stream
-		try (FileInputStream stream = new FileInputStream(f)) {
+		return (OriginalFile) this.saveAndReturnObject(originalFile);
+	}
+	
+	private OriginalFile uploadOriginalFile(final OriginalFile originalFile,
+			final InputStream stream)
+			throws DSOutOfServiceException, IOException, ServerError {
+		return this.uploadRawFile(originalFile,
+				rawFileStore -> this.uploader.upload(rawFileStore, stream));
+	}
+	
+	private OriginalFile uploadOriginalFile(final OriginalFile originalFile,
+			final File f, final MessageDigest digest)
+			throws DSOutOfServiceException, IOException, ServerError {
+		if (f.length() >= OmeroDataWriter.MAPPED_UPLOAD_SIZE)
+			// Large files are read through a memory mapping, the heap only
+			// holds the two chunk buffers
+			return this.uploadRawFile(originalFile,
+					rawFileStore -> this.uploader.upload(rawFileStore, f,
+							digest));
+		try (InputStream stream = digest == null ? new FileInputStream(f)
+				: new DigestInputStream(new FileInputStream(f), digest)) {
+			return this.uploadOriginalFile(originalFile, stream);
+		}
+	}
+	
+	private OriginalFile uploadOriginalFile(final OriginalFile originalFile,
+			final StreamProducer producer)
+			throws DSOutOfServiceException, IOException, ServerError {
+		return this.uploadRawFile(originalFile, rawFileStore -> {
+			try (OmeroRawFileOutputStream out = new OmeroRawFileOutputStream(
+					rawFileStore, this.uploader.getChunkSize(), this.metrics)) {
+				producer.write(out);
+			}
+		});
+	}
+	
+	private OriginalFile uploadRawFile(final OriginalFile originalFile,
+			final RawFileUpload upload)
+			throws DSOutOfServiceException, IOException, ServerError {
+		final OmeroUploadEngine engine = this.getUploadEngine();
+		// Borrow a service to load the raw data
+		final RawFileStorePrx rawFileStore = engine.acquire(this.ctx);
+		boolean reusable = false;
+		try {
 			rawFileStore.setFileId(originalFile.getId().getValue());
-			while ((rlen = stream.read(buf)) > 0) {
-				rawFileStore.write(buf, pos, rlen);
-				pos += rlen;
-				bbuf = ByteBuffer.wrap(buf);
-				bbuf.limit(rlen);
+			upload.write(rawFileStore);
+			final OriginalFile savedFile = rawFileStore.save();
+			reusable = true;
+			return savedFile;
+		} finally {
+			engine.release(this.ctx, rawFileStore, reusable);
+		}
+	}
+	
+	public synchronized OmeroUploadEngine getUploadEngine() {
+		if (this.uploadEngine == null) {
+			this.uploadEngine = new OmeroUploadEngine(this.gateway,
+					this.uploadParallelism);
+		}
+		return this.uploadEngine;
+	}
+	
+	public void setUploadParallelism(final int uploadParallelism) {
+		this.uploadParallelism = uploadParallelism;
+	}
+	
+	public int getUploadParallelism() {
+		return this.uploadParallelism;
+	}
+	
+	public synchronized OmeroWriteBehindQueue getWriteBehindQueue() {
+		if (this.writeBehindQueue == null) {
+			this.writeBehindQueue = new OmeroWriteBehindQueue(this,
+					this.writeBehindCapacity, this.writeBehindPolicy);
+		}
+		return this.writeBehindQueue;
+	}
+	
+	public void setWriteBehindCapacity(final int writeBehindCapacity) {
+		this.writeBehindCapacity = writeBehindCapacity;
+	}
+	
+	public void setWriteBehindPolicy(
+			final OmeroWriteBehindQueue.OverflowPolicy writeBehindPolicy) {
+		this.writeBehindPolicy = writeBehindPolicy;
+	}
+	
+	public void flush() throws InterruptedException {
+		final OmeroWriteBehindQueue queue;
+		synchronized (this) {
+			queue = this.writeBehindQueue;
+		}
+		if (queue != null) {
+			queue.flush();
+		}
+	}
+	
+	public void setMetrics(final OmeroWriterMetrics metrics) {
+		this.metrics = metrics;
+		this.uploader.setMetrics(metrics);
+	}
+	
+	public OmeroWriterMetrics getMetrics() {
+		return this.metrics;
+	}
+	
+	public void setJournal(final OmeroWriteJournal journal) {
+		this.journal = journal;
+	}
+	
+	public OmeroWriteJournal getJournal() {
+		return this.journal;
+	}
+	
+	private long beginJournal(final String kind,
+			final Class<? extends DataObject> type, final Long id,
+			final String... args) throws IOException {
+		if (this.journal == null)
+			return -1;
+		final String[] entryArgs = new String[args.length + 2];
+		entryArgs[0] = type.getSimpleName();
+		entryArgs[1] = String.valueOf(id);
+		System.arraycopy(args, 0, entryArgs, 2, args.length);
+		return this.journal.begin(kind, entryArgs);
+	}
+	
+	private void recordJournal(final long op, final String stage,
+			final IObject object) throws IOException {
+		if ((this.journal != null) && (op >= 0)) {
+			this.journal.record(op, stage, object.getId().getValue());
+		}
+	}
+	
+	private void completeJournal(final long op) throws IOException {
+		if ((this.journal != null) && (op >= 0)) {
+			this.journal.complete(op);
+		}
+	}
+	
+	// Keyed by journal operation ID. Tables and copies left unattached are
+	// deleted and reported as failures
+	public OmeroBatchResult recoverJournal()
+			throws DSOutOfServiceException, IOException {
+		final OmeroBatchResult result = new OmeroBatchResult();
+		if (this.journal == null)
+			return result;
+		final IQueryPrx query = this.gateway.getQueryService(this.ctx);
+		final IUpdatePrx update = this.gateway.getUpdateService(this.ctx);
+		for (final OmeroWriteJournal.Entry entry : this.journal
+				.getPending()) {
+			try {
+				final Long annotationId = this.recoverEntry(query, update,
+						entry);
+				if (annotationId != null) {
+					result.addWritten(entry.getId(), annotationId);
+				} else {
+					result.addFailure(entry.getId(), new DSAccessException(
+							"The partial " + entry.getKind()
+									+ " was deleted, it has to be written again",
+							null));
+				}
+				this.journal.complete(entry.getId());
+			} catch (final Exception ex) {
+				result.addFailure(entry.getId(), ex);
 			}
-			originalFile = rawFileStore.save();
-		} finally {
-			rawFileStore.close();
 		}
-
-		FileAnnotation fa = new FileAnnotationI();
-		fa.setFile(originalFile);
-		// fa.setDescription(omero.rtypes.rstring(description));
-		fa.setNs(omero.rtypes.rstring(OmeroDataWriter.JSON_FILEANN_NS));
-		fa = (FileAnnotation) this.dataManager.saveAndReturnObject(this.ctx,
-				fa);
-
-		// now link the image and the annotation
-		ImageAnnotationLink link = new ImageAnnotationLinkI();
-		link.setChild(fa);
-		link.setParent(image.asImage());
-		// save the link back to the server.
-		link = (ImageAnnotationLink) this.dataManager
-				.saveAndReturnObject(this.ctx, link);
+		this.journal.compact();
+		return result;
+	}
+	
+	private Long recoverEntry(final IQueryPrx query, final IUpdatePrx update,
+			final OmeroWriteJournal.Entry entry) throws Exception {
+		final Class<? extends DataObject> type = OmeroDataWriter
+				.getDataType(entry.getArg(0));
+		final Long targetId = Long.valueOf(entry.getArg(1));
+		final Long fileId = entry
+				.getObjectId(OmeroDataWriter.JOURNAL_ORIGINAL_FILE);
+		Long annotationId = entry
+				.getObjectId(OmeroDataWriter.JOURNAL_ANNOTATION);
+		if ((annotationId == null) && (fileId != null)) {
+			// tables save the annotation with the link, the record may also
+			// have been lost in a crash right after the save
+			final List<IObject> found = query.findAllByQuery(
+					"select fa from FileAnnotation fa where fa.file.id = :id",
+					new ParametersI().addId(fileId));
+			if (!found.isEmpty()) {
+				annotationId = found.get(0).getId().getValue();
+			}
+		}
+		if (annotationId != null) {
+			final ParametersI params = new ParametersI();
+			params.add("parent", omero.rtypes.rlong(targetId));
+			params.add("child", omero.rtypes.rlong(annotationId));
+			final List<IObject> links = query.findAllByQuery("select l from "
+					+ OmeroDataWriter.getLinkClass(type)
+					+ " l where l.parent.id = :parent and l.child.id = :child",
+					params);
+			if (links.isEmpty()) {
+				update.saveObject(this.createAnnotationLink(type, targetId,
+						new FileAnnotationI(annotationId, false)));
+			}
+			if (OmeroDataWriter.JOURNAL_FILE.equals(entry.getKind())
+					&& (entry.getObjectId(
+							OmeroDataWriter.JOURNAL_MAP_ANNOTATION) == null)) {
+				this.recoverJsonValues(targetId, new File(entry.getArg(2)),
+						entry.getArg(4));
+			}
+			return annotationId;
+		}
+		if ((fileId != null)
+				&& (query.find("OriginalFile", fileId) != null)) {
+			update.deleteObject(new OriginalFileI(fileId, false));
+		}
+		if (!OmeroDataWriter.JOURNAL_FILE.equals(entry.getKind()))
+			return null;
+		final File f = new File(entry.getArg(2));
+		if (!f.isFile())
+			throw new FileNotFoundException(f.getAbsolutePath());
+		return this.writeFileAnnotation(new ImageI(targetId, false), f,
+				entry.getArg(3), entry.getArg(4)).getId().getValue();
+	}
+	
+	private void recoverJsonValues(final Long imageId, final File f,
+			final String mimetype) throws Exception {
+		final OmeroJsonMetadataExtractor extractor = this
+				.createJsonExtractor(mimetype);
+		if (extractor == null)
+			return;
+		if (!f.isFile())
+			throw new FileNotFoundException(f.getAbsolutePath());
+		Files.copy(f.toPath(), extractor);
+		this.writeJsonValues(new ImageI(imageId, false), extractor, -1);
+	}
+	
+	private static Class<? extends DataObject> getDataType(
+			final String name) {
+		if (ProjectData.class.getSimpleName().equals(name))
+			return ProjectData.class;
+		if (DatasetData.class.getSimpleName().equals(name))
+			return DatasetData.class;
+		if (ImageData.class.getSimpleName().equals(name))
+			return ImageData.class;
+		throw new IllegalArgumentException(
+				"Unsupported annotation target " + name);
+	}
+	
+	public void setCSVStreaming(final boolean csvStreaming) {
+		this.csvStreaming = csvStreaming;
+	}
+	
+	public boolean isCSVStreaming() {
+		return this.csvStreaming;
+	}
+	
+	// Also attach a columnar copy of the builder tables
+	public void setColumnarExport(final boolean columnarExport) {
+		this.columnarExport = columnarExport;
+	}
+	
+	public boolean isColumnarExport() {
+		return this.columnarExport;
 	}
 	
 	public void writeDataTableToProject(final String projectName,
@@ -402,8 +1662,8 @@ public class OmeroDataWriter {
 			final List<List<? extends Object>> tableColumnsData,
 			final boolean saveAsCSV) throws DSOutOfServiceException,
 			DSAccessException, ExecutionException, ServerError, IOException {
-		final ProjectData project = this.retrieveProject(projectName);
-		this.writeDataTableToProject(project.getId(), name, desc, columnNames,
+		final Long projectId = this.retrieveProjectId(projectName);
+		this.writeDataTableToProject(projectId, name, desc, columnNames,
 				tableColumnsData, saveAsCSV);
 	}
 	
@@ -443,21 +1703,32 @@ public class OmeroDataWriter {
 				.getFacility(TablesFacility.class);
 		
 		// Attach the table to the image
-		tableData = tabFac.addTable(this.ctx, project, name, tableData);
+		final long start = System.nanoTime();
+		try {
+			tableData = tabFac.addTable(this.ctx, project, name, tableData);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.ADD_TABLE);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.ADD_TABLE,
+				System.nanoTime() - start);
+		this.metrics.addRows(OmeroWriterMetrics.ADD_TABLE, maxSize);
 		
 		if (!saveAsCSV)
 			return;
 		
-		final FileAnnotation fa = this.createCSVFile(name, desc, columnNames,
-				tableColumnsData);
+		final long op = this.beginJournal(OmeroDataWriter.JOURNAL_CSV,
+				ProjectData.class, id, name);
+		final FileAnnotation fa = this.createCSVFile(name, desc,
+				OmeroTableColumn.of(columnNames, tableColumnsData), op);
 		
 		// now link the image and the annotation
 		ProjectAnnotationLink link = new ProjectAnnotationLinkI();
 		link.setChild(fa);
 		link.setParent(project.asProject());
 		// save the link back to the server.
-		link = (ProjectAnnotationLink) this.dataManager
-				.saveAndReturnObject(this.ctx, link);
+		link = (ProjectAnnotationLink) this.saveAndReturnObject(link);
+		this.completeJournal(op);
 		// o attach to a Dataset use DatasetAnnotationLink;
 	}
 	
@@ -467,9 +1738,9 @@ public class OmeroDataWriter {
 			final List<List<? extends Object>> tableColumnsData,
 			final boolean saveAsCSV) throws DSOutOfServiceException,
 			DSAccessException, ExecutionException, ServerError, IOException {
-		final ProjectData project = this.retrieveProject(projectName);
-		final DatasetData dataset = this.retrieveDataset(datasetName, project);
-		this.writeDataTableToDataset(dataset.getId(), name, desc, columnNames,
+		final Long projectId = this.retrieveProjectId(projectName);
+		final Long datasetId = this.retrieveDatasetId(datasetName, projectId);
+		this.writeDataTableToDataset(datasetId, name, desc, columnNames,
 				tableColumnsData, saveAsCSV);
 	}
 	
@@ -509,21 +1780,32 @@ public class OmeroDataWriter {
 				.getFacility(TablesFacility.class);
 		
 		// Attach the table to the image
-		tableData = tabFac.addTable(this.ctx, dataset, name, tableData);
+		final long start = System.nanoTime();
+		try {
+			tableData = tabFac.addTable(this.ctx, dataset, name, tableData);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.ADD_TABLE);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.ADD_TABLE,
+				System.nanoTime() - start);
+		this.metrics.addRows(OmeroWriterMetrics.ADD_TABLE, maxSize);
 		
 		if (!saveAsCSV)
 			return;
 		
-		final FileAnnotation fa = this.createCSVFile(name, desc, columnNames,
-				tableColumnsData);
+		final long op = this.beginJournal(OmeroDataWriter.JOURNAL_CSV,
+				DatasetData.class, id, name);
+		final FileAnnotation fa = this.createCSVFile(name, desc,
+				OmeroTableColumn.of(columnNames, tableColumnsData), op);
 		
 		// now link the image and the annotation
 		DatasetAnnotationLink link = new DatasetAnnotationLinkI();
 		link.setChild(fa);
 		link.setParent(dataset.asDataset());
 		// save the link back to the server.
-		link = (DatasetAnnotationLink) this.dataManager
-				.saveAndReturnObject(this.ctx, link);
+		link = (DatasetAnnotationLink) this.saveAndReturnObject(link);
+		this.completeJournal(op);
 		// o attach to a Dataset use DatasetAnnotationLink;
 	}
 	
@@ -533,10 +1815,10 @@ public class OmeroDataWriter {
 			final List<List<? extends Object>> tableColumnsData,
 			final boolean saveAsCSV) throws DSOutOfServiceException,
 			DSAccessException, ExecutionException, ServerError, IOException {
-		final ProjectData project = this.retrieveProject(projectName);
-		final DatasetData dataset = this.retrieveDataset(datasetName, project);
-		final ImageData image = this.retrieveImage(imageName, dataset);
-		this.writeDataTableToImage(image.getId(), name, desc, columnNames,
+		final Long projectId = this.retrieveProjectId(projectName);
+		final Long datasetId = this.retrieveDatasetId(datasetName, projectId);
+		final Long imageId = this.retrieveImageId(imageName, datasetId);
+		this.writeDataTableToImage(imageId, name, desc, columnNames,
 				tableColumnsData, saveAsCSV);
 	}
 	
@@ -576,166 +1858,662 @@ public class OmeroDataWriter {
 				.getFacility(TablesFacility.class);
 		
 		// Attach the table to the image
-		tableData = tabFac.addTable(this.ctx, image, name, tableData);
+		final long start = System.nanoTime();
+		try {
+			tableData = tabFac.addTable(this.ctx, image, name, tableData);
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.ADD_TABLE);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.ADD_TABLE,
+				System.nanoTime() - start);
+		this.metrics.addRows(OmeroWriterMetrics.ADD_TABLE, maxSize);
 		
 		if (!saveAsCSV)
 			return;
 		
-		final FileAnnotation fa = this.createCSVFile(name, desc, columnNames,
-				tableColumnsData);
+		final long op = this.beginJournal(OmeroDataWriter.JOURNAL_CSV,
+				ImageData.class, id, name);
+		final FileAnnotation fa = this.createCSVFile(name, desc,
+				OmeroTableColumn.of(columnNames, tableColumnsData), op);
 		
 		// now link the image and the annotation
 		ImageAnnotationLink link = new ImageAnnotationLinkI();
 		link.setChild(fa);
 		link.setParent(image.asImage());
 		// save the link back to the server.
-		link = (ImageAnnotationLink) this.dataManager
-				.saveAndReturnObject(this.ctx, link);
+		link = (ImageAnnotationLink) this.saveAndReturnObject(link);
+		this.completeJournal(op);
 		// o attach to a Dataset use DatasetAnnotationLink;
 	}
 	
-	public Object[] getImageInformation(final Long imageID)
-			throws DSOutOfServiceException, DSAccessException {
+	public void writeDataTableToProject(final Long id, final String name,
+			final String desc, final OmeroTableBuilder table,
+			final boolean saveAsCSV) throws DSOutOfServiceException,
+			DSAccessException, ServerError, IOException {
+		this.writeDataTable(ProjectData.class, id, name, desc, table,
+				saveAsCSV);
+	}
+	
+	public void writeDataTableToDataset(final Long id, final String name,
+			final String desc, final OmeroTableBuilder table,
+			final boolean saveAsCSV) throws DSOutOfServiceException,
+			DSAccessException, ServerError, IOException {
+		this.writeDataTable(DatasetData.class, id, name, desc, table,
+				saveAsCSV);
+	}
+	
+	public void writeDataTableToImage(final Long id, final String name,
+			final String desc, final OmeroTableBuilder table,
+			final boolean saveAsCSV) throws DSOutOfServiceException,
+			DSAccessException, ServerError, IOException {
+		this.writeDataTable(ImageData.class, id, name, desc, table,
+				saveAsCSV);
+	}
+	
+	private void writeDataTable(final Class<? extends DataObject> type,
+			final Long id, final String name, final String desc,
+			final OmeroTableBuilder table, final boolean saveAsCSV)
+			throws DSOutOfServiceException, DSAccessException, ServerError,
+			IOException {
+		this.addTable(type, id, name, table);
+		
+		if (saveAsCSV) {
+			final long op = this.beginJournal(OmeroDataWriter.JOURNAL_CSV,
+					type, id, name);
+			final FileAnnotation fa = this.createCSVFile(name, desc,
+					table.getColumns(), op);
+			// now link the target and the annotation
+			this.saveAndReturnObject(this.createAnnotationLink(type, id, fa));
+			this.completeJournal(op);
+		}
 		
-		final Collection<ProjectData> projects = this.browser
-				.getProjects(this.ctx);
+		if (this.columnarExport) {
+			final long op = this.beginJournal(
+					OmeroDataWriter.JOURNAL_COLUMNAR, type, id, name);
+			final OriginalFile originalFile = this.uploadColumnarFile(name,
+					table.getColumns(), op);
+			final FileAnnotation fa = (FileAnnotation) this
+					.saveAndReturnObject(OmeroDataWriter
+							.createExportAnnotation(originalFile, desc));
+			this.recordJournal(op, OmeroDataWriter.JOURNAL_ANNOTATION, fa);
+			this.saveAndReturnObject(this.createAnnotationLink(type, id, fa));
+			this.completeJournal(op);
+		}
+	}
+	
+	private FileAnnotation addTable(final Class<? extends DataObject> type,
+			final Long id, final String name, final OmeroTableBuilder table)
+			throws DSOutOfServiceException, DSAccessException, ServerError,
+			IOException {
+		// The TablesFacility only accepts boxed Object[][] data, the columns
+		// are sent directly to a table service in row slices instead
+		final long op = this.beginJournal(OmeroDataWriter.JOURNAL_TABLE, type,
+				id, name);
+		final long fileId = this.uploadTable(name, table, op);
+		// Attach the table to the target
+		final FileAnnotation fa = this.linkTable(type, id, fileId);
+		this.completeJournal(op);
+		return fa;
+	}
+	
+	private long uploadTable(final String name, final OmeroTableBuilder table,
+			final long op) throws DSOutOfServiceException, DSAccessException,
+			ServerError, IOException {
+		final long start = System.nanoTime();
+		final long fileId;
+		try {
+			final TablePrx tablePrx = this.createTable(name, table);
+			try (OmeroTableWriter writer = this.createTableWriter(tablePrx)) {
+				fileId = writer.getFileId();
+				this.recordJournal(op, OmeroDataWriter.JOURNAL_ORIGINAL_FILE,
+						new OriginalFileI(fileId, false));
+				writer.append(table);
+			}
+		} catch (final Exception ex) {
+			this.metrics.recordError(OmeroWriterMetrics.ADD_TABLE);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.ADD_TABLE,
+				System.nanoTime() - start);
+		this.metrics.addRows(OmeroWriterMetrics.ADD_TABLE, table.getRowCount());
+		return fileId;
+	}
+	
+	public OmeroBatchResult writeDataTablesToProjects(final String name,
+			final String desc, final Map<Long, OmeroTableBuilder> tables,
+			final boolean saveAsCSV) throws DSOutOfServiceException {
+		return this.writeDataTablesToTargets(ProjectData.class, name, desc,
+				tables, saveAsCSV);
+	}
+	
+	public OmeroBatchResult writeDataTablesToDatasets(final String name,
+			final String desc, final Map<Long, OmeroTableBuilder> tables,
+			final boolean saveAsCSV) throws DSOutOfServiceException {
+		return this.writeDataTablesToTargets(DatasetData.class, name, desc,
+				tables, saveAsCSV);
+	}
+	
+	public OmeroBatchResult writeDataTablesToImages(final String name,
+			final String desc, final Map<Long, OmeroTableBuilder> tables,
+			final boolean saveAsCSV) throws DSOutOfServiceException {
+		return this.writeDataTablesToTargets(ImageData.class, name, desc,
+				tables, saveAsCSV);
+	}
+	
+	// The tables and their CSV and columnar copies are uploaded on the upload
+	// engine, the annotations and their links are then saved in batches. The
+	// result holds the table annotation of each target, a target whose copy
+	// could not be attached or whose journal entry could not be completed is
+	// also reported as failed.
+	private OmeroBatchResult writeDataTablesToTargets(
+			final Class<? extends DataObject> type, final String name,
+			final String desc, final Map<Long, OmeroTableBuilder> tables,
+			final boolean saveAsCSV) throws DSOutOfServiceException {
+		final OmeroBatchResult result = new OmeroBatchResult();
+		final Map<Long, Future<PreparedTable>> futures = new LinkedHashMap<Long, Future<PreparedTable>>();
+		final OmeroUploadEngine engine = this.getUploadEngine();
+		final List<Long> tableIDs = new ArrayList<Long>();
+		final List<IObject> tableLinks = new ArrayList<IObject>();
+		final List<Long> csvIDs = new ArrayList<Long>();
+		final List<IObject> csvLinks = new ArrayList<IObject>();
+		final List<Long> columnarIDs = new ArrayList<Long>();
+		final List<IObject> columnarLinks = new ArrayList<IObject>();
+		final Map<Long, PreparedTable> prepared = new HashMap<Long, PreparedTable>();
+		// Only raw file uploads take a service from the engine, the tables
+		// opened at the same time are bounded here
+		final Semaphore tableSlots = new Semaphore(
+				Math.max(1, this.uploadParallelism));
+		for (final Map.Entry<Long, OmeroTableBuilder> entry : tables
+				.entrySet()) {
+			futures.put(entry.getKey(), engine.submit(() -> {
+				tableSlots.acquire();
+				try {
+					return this.prepareTable(type, entry.getKey(), name, desc,
+							entry.getValue(), saveAsCSV);
+				} finally {
+					tableSlots.release();
+				}
+			}));
+		}
+		InterruptedException interruption = null;
+		for (final Map.Entry<Long, Future<PreparedTable>> entry : futures
+				.entrySet()) {
+			final Long id = entry.getKey();
+			final Future<PreparedTable> future = entry.getValue();
+			// Once interrupted the tables not done yet are abandoned, what
+			// a cancelled task saved is left to the journal recovery
+			if ((interruption != null) && future.cancel(true)) {
+				result.addFailure(id, interruption);
+				continue;
+			}
+			try {
+				final PreparedTable table = future.get();
+				prepared.put(id, table);
+				tableIDs.add(id);
+				tableLinks.add(table.tableLink);
+				if (table.csvLink != null) {
+					csvIDs.add(id);
+					csvLinks.add(table.csvLink);
+				}
+				if (table.columnarLink != null) {
+					columnarIDs.add(id);
+					columnarLinks.add(table.columnarLink);
+				}
+			} catch (final ExecutionException ex) {
+				result.addFailure(id,
+						ex.getCause() instanceof Exception
+								? (Exception) ex.getCause()
+								: new Exception(ex.getCause()));
+			} catch (final InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				interruption = ex;
+				future.cancel(true);
+				result.addFailure(id, ex);
+			}
+		}
 		
-		final Object[] infos = new Object[4];
-		String name = "";
+		final IUpdatePrx update = this.gateway.getUpdateService(this.ctx);
+		for (int i = 0; i < tableLinks.size(); i += this.batchSize) {
+			final int end = Math.min(tableLinks.size(), i + this.batchSize);
+			this.saveBatch(update, tableIDs.subList(i, end),
+					tableLinks.subList(i, end), result);
+		}
+		final OmeroBatchResult csvResult = this.saveLinks(update, csvIDs,
+				csvLinks, result);
+		final OmeroBatchResult columnarResult = this.saveLinks(update,
+				columnarIDs, columnarLinks, result);
 		
-		final Iterator<ProjectData> projIt = projects.iterator();
-		ProjectData project;
-		while (projIt.hasNext()) {
-			project = projIt.next();
-			name = project.getName() + "/";
-			final Iterator<DatasetData> datIt = project.getDatasets()
-					.iterator();
-			DatasetData dataset;
-			while (datIt.hasNext()) {
-				dataset = datIt.next();
-				final String name2 = name + dataset.getName() + "/";
-				final List<Long> datasetIDs = new ArrayList<Long>();
-				datasetIDs.add(dataset.getId());
-				final Collection<ImageData> images = this.browser
-						.getImagesForDatasets(this.ctx, datasetIDs);
-				final Iterator<ImageData> imgIt = images.iterator();
-				ImageData image;
-				while (imgIt.hasNext()) {
-					image = imgIt.next();
-					final String name3 = name2 + image.getName();
-					if (image.getId() == imageID) {
-						infos[0] = image.getId();
-						infos[1] = dataset.getId();
-						infos[2] = project.getId();
-						infos[3] = name3;
-						return infos;
+		// Completed operations leave the journal, the others are resolved
+		// by a later recovery
+		final Map<Long, Long> written = result.getWritten();
+		final Map<Long, Long> csvWritten = csvResult.getWritten();
+		final Map<Long, Long> columnarWritten = columnarResult.getWritten();
+		for (final Map.Entry<Long, PreparedTable> entry : prepared
+				.entrySet()) {
+			final Long id = entry.getKey();
+			try {
+				if (written.containsKey(id)) {
+					this.completeJournal(entry.getValue().tableOp);
+				}
+				if (csvWritten.containsKey(id)) {
+					this.completeJournal(entry.getValue().csvOp);
+				}
+				if (columnarWritten.containsKey(id)) {
+					this.completeJournal(entry.getValue().columnarOp);
+				}
+			} catch (final IOException ex) {
+				result.addFailure(id, ex);
+			}
+		}
+		return result;
+	}
+	
+	// Saves the links of an attached copy, a failure is also added to the
+	// result of the table
+	private OmeroBatchResult saveLinks(final IUpdatePrx update,
+			final List<Long> ids, final List<IObject> links,
+			final OmeroBatchResult result) {
+		final OmeroBatchResult linkResult = new OmeroBatchResult();
+		for (int i = 0; i < links.size(); i += this.batchSize) {
+			final int end = Math.min(links.size(), i + this.batchSize);
+			this.saveBatch(update, ids.subList(i, end), links.subList(i, end),
+					linkResult);
+		}
+		for (final Map.Entry<Long, Exception> failure : linkResult
+				.getFailures().entrySet()) {
+			result.addFailure(failure.getKey(), failure.getValue());
+		}
+		return linkResult;
+	}
+	
+	private PreparedTable prepareTable(final Class<? extends DataObject> type,
+			final Long id, final String name, final String desc,
+			final OmeroTableBuilder table, final boolean saveAsCSV)
+			throws DSOutOfServiceException, DSAccessException, ServerError,
+			IOException {
+		final PreparedTable prepared = new PreparedTable();
+		prepared.tableOp = this.beginJournal(OmeroDataWriter.JOURNAL_TABLE,
+				type, id, name);
+		final long fileId = this.uploadTable(name, table,
+				prepared.tableOp);
+		prepared.tableLink = this.createAnnotationLink(type, id,
+				OmeroDataWriter.createTableAnnotation(fileId));
+		prepared.csvOp = -1;
+		if (saveAsCSV) {
+			prepared.csvOp = this.beginJournal(OmeroDataWriter.JOURNAL_CSV,
+					type, id, name);
+			final OriginalFile originalFile = this.uploadCSVFile(name,
+					table.getColumns(), prepared.csvOp);
+			prepared.csvLink = this.createAnnotationLink(type, id,
+					OmeroDataWriter.createExportAnnotation(originalFile, desc));
+		}
+		prepared.columnarOp = -1;
+		if (this.columnarExport) {
+			prepared.columnarOp = this.beginJournal(
+					OmeroDataWriter.JOURNAL_COLUMNAR, type, id, name);
+			final OriginalFile originalFile = this.uploadColumnarFile(name,
+					table.getColumns(), prepared.columnarOp);
+			prepared.columnarLink = this.createAnnotationLink(type, id,
+					OmeroDataWriter.createExportAnnotation(originalFile, desc));
+		}
+		return prepared;
+	}
+	
+	public OmeroTableWriter openDataTableOnProject(final Long id,
+			final String name, final OmeroTableBuilder header)
+			throws DSOutOfServiceException, DSAccessException, ServerError {
+		return this.openDataTable(ProjectData.class, id, name, header);
+	}
+	
+	public OmeroTableWriter openDataTableOnDataset(final Long id,
+			final String name, final OmeroTableBuilder header)
+			throws DSOutOfServiceException, DSAccessException, ServerError {
+		return this.openDataTable(DatasetData.class, id, name, header);
+	}
+	
+	public OmeroTableWriter openDataTableOnImage(final Long id,
+			final String name, final OmeroTableBuilder header)
+			throws DSOutOfServiceException, DSAccessException, ServerError {
+		return this.openDataTable(ImageData.class, id, name, header);
+	}
+	
+	public OmeroTableWriter reopenDataTable(final Long fileId)
+			throws DSOutOfServiceException, DSAccessException, ServerError {
+		final SharedResourcesPrx sharedResources = this.gateway
+				.getSharedResources(this.ctx);
+		final TablePrx tablePrx = sharedResources
+				.openTable(new OriginalFileI(fileId, false));
+		if (tablePrx == null)
+			throw new DSAccessException("Cannot open table " + fileId);
+		return this.createTableWriter(tablePrx);
+	}
+	
+	public OmeroTableReader openDataTableReader(final Long fileId)
+			throws DSOutOfServiceException, DSAccessException, ServerError {
+		final SharedResourcesPrx sharedResources = this.gateway
+				.getSharedResources(this.ctx);
+		final TablePrx tablePrx = sharedResources
+				.openTable(new OriginalFileI(fileId, false));
+		if (tablePrx == null)
+			throw new DSAccessException("Cannot open table " + fileId);
+		try {
+			return new OmeroTableReader(tablePrx,
+					OmeroDataWriter.TABLE_BATCH_ROWS, this.metrics);
+		} catch (final Exception ex) {
+			OmeroDataWriter.closeTable(tablePrx);
+			throw ex;
+		}
+	}
+	
+	public Map<Long, List<Long>> findDataTablesOnProjects(final String name,
+			final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.findDataTables(ProjectData.class, name, ids);
+	}
+	
+	public Map<Long, List<Long>> findDataTablesOnDatasets(final String name,
+			final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.findDataTables(DatasetData.class, name, ids);
+	}
+	
+	public Map<Long, List<Long>> findDataTablesOnImages(final String name,
+			final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		return this.findDataTables(ImageData.class, name, ids);
+	}
+	
+	// Returns the file IDs of the tables attached to each target, oldest
+	// first, to be opened with openDataTableReader. A null name matches
+	// every table.
+	private Map<Long, List<Long>> findDataTables(
+			final Class<? extends DataObject> type, final String name,
+			final Collection<Long> ids)
+			throws DSOutOfServiceException, DSAccessException {
+		final Map<Long, List<Long>> tables = new LinkedHashMap<Long, List<Long>>();
+		final IQueryPrx query = this.gateway.getQueryService(this.ctx);
+		final String tableQuery = "select l.parent.id, fa.file.id from "
+				+ OmeroDataWriter.getLinkClass(type) + " l, FileAnnotation fa"
+				+ " where l.child.id = fa.id and fa.ns = :ns"
+				+ (name == null ? "" : " and fa.file.name = :name")
+				+ " and l.parent.id in (:ids) order by fa.id";
+		final List<Long> targetIDs = new ArrayList<Long>(ids);
+		final long start = System.nanoTime();
+		try {
+			for (int i = 0; i < targetIDs
+					.size(); i += OmeroDataWriter.QUERY_BATCH_SIZE) {
+				final ParametersI params = new ParametersI();
+				params.addIds(targetIDs.subList(i, Math.min(targetIDs.size(),
+						i + OmeroDataWriter.QUERY_BATCH_SIZE)));
+				params.add("ns", omero.rtypes.rstring(NSBULKANNOTATIONS.value));
+				if (name != null) {
+					params.add("name", omero.rtypes.rstring(name));
+				}
+				for (final List<RType> row : query.projection(tableQuery,
+						params)) {
+					final Long targetId = ((RLong) row.get(0)).getValue();
+					List<Long> fileIDs = tables.get(targetId);
+					if (fileIDs == null) {
+						fileIDs = new ArrayList<Long>();
+						tables.put(targetId, fileIDs);
 					}
+					fileIDs.add(((RLong) row.get(1)).getValue());
 				}
 			}
+		} catch (final ServerError ex) {
+			this.metrics.recordError(OmeroWriterMetrics.FIND_TABLES);
+			throw new DSAccessException("Cannot retrieve tables", ex);
 		}
-		return null;
+		this.metrics.recordLatency(OmeroWriterMetrics.FIND_TABLES,
+				System.nanoTime() - start);
+		return tables;
+	}
+	
+	private OmeroTableWriter openDataTable(
+			final Class<? extends DataObject> type, final Long id,
+			final String name, final OmeroTableBuilder header)
+			throws DSOutOfServiceException, DSAccessException, ServerError {
+		final TablePrx tablePrx = this.createTable(name, header);
+		final OmeroTableWriter writer = this.createTableWriter(tablePrx);
+		try {
+			// Link right away so that an interrupted table can be found and
+			// reopened to resume appending
+			this.linkTable(type, id, writer.getFileId());
+		} catch (final Exception ex) {
+			OmeroDataWriter.closeTable(tablePrx);
+			throw ex;
+		}
+		return writer;
+	}
+	
+	// The table is closed when the writer cannot be created, the caller
+	// would have nothing to close it with
+	private OmeroTableWriter createTableWriter(final TablePrx tablePrx)
+			throws ServerError {
+		try {
+			return new OmeroTableWriter(tablePrx,
+					OmeroDataWriter.TABLE_BATCH_ROWS, this.metrics);
+		} catch (final Exception ex) {
+			OmeroDataWriter.closeTable(tablePrx);
+			throw ex;
+		}
+	}
+	
+	private static void closeTable(final TablePrx tablePrx) {
+		try {
+			tablePrx.close();
+		} catch (final ServerError ex) {
+			// the table is discarded anyway
+		} catch (final RuntimeException ex) {
+			// the table is discarded anyway
+		}
+	}
+	
+	private TablePrx createTable(final String name,
+			final OmeroTableBuilder header)
+			throws DSOutOfServiceException, DSAccessException, ServerError {
+		final SharedResourcesPrx sharedResources = this.gateway
+				.getSharedResources(this.ctx);
+		final long repositoryId = sharedResources.repositories().descriptions
+				.get(0).getId().getValue();
+		final TablePrx tablePrx = sharedResources.newTable(repositoryId,
+				name);
+		if (tablePrx == null)
+			throw new DSAccessException(
+					"Tables are not available on the server");
+		try {
+			tablePrx.initialize(header.toGridColumns(0, 0));
+		} catch (final Exception ex) {
+			OmeroDataWriter.closeTable(tablePrx);
+			throw ex;
+		}
+		return tablePrx;
+	}
+	
+	private FileAnnotation linkTable(final Class<? extends DataObject> type,
+			final Long id, final long fileId)
+			throws DSOutOfServiceException, DSAccessException {
+		final ILink link = (ILink) this.saveAndReturnObject(
+				this.createAnnotationLink(type, id,
+						OmeroDataWriter.createTableAnnotation(fileId)));
+		return (FileAnnotation) link.getChild();
+	}
+	
+	private static FileAnnotation createTableAnnotation(final long fileId) {
+		final FileAnnotation fa = new FileAnnotationI();
+		fa.setFile(new OriginalFileI(fileId, false));
+		fa.setNs(omero.rtypes.rstring(NSBULKANNOTATIONS.value));
+		return fa;
+	}
+	
+	public Object[] getImageInformation(final Long imageID)
+			throws DSOutOfServiceException, DSAccessException {
+		final List<Long> imageIDs = new ArrayList<Long>();
+		imageIDs.add(imageID);
+		return this.getImageInformation(imageIDs).get(imageID);
+	}
+	
+	public Map<Long, Object[]> getImageInformation(
+			final Collection<Long> imageIDs)
+			throws DSOutOfServiceException, DSAccessException {
+		final Map<Long, Object[]> infos = new LinkedHashMap<Long, Object[]>();
+		final List<Long> missingIDs = new ArrayList<Long>();
+		for (final Long imageID : imageIDs) {
+			final Object[] cached = this.hierarchyCache
+					.getImageInformation(imageID);
+			if (cached != null) {
+				// callers get their own copy of the cached array
+				infos.put(imageID, cached.clone());
+			} else {
+				missingIDs.add(imageID);
+			}
+		}
+		if (missingIDs.isEmpty())
+			return infos;
+		
+		final IQueryPrx query = this.gateway.getQueryService(this.ctx);
+		for (int i = 0; i < missingIDs
+				.size(); i += OmeroDataWriter.QUERY_BATCH_SIZE) {
+			final ParametersI params = new ParametersI();
+			params.addIds(missingIDs.subList(i, Math.min(missingIDs.size(),
+					i + OmeroDataWriter.QUERY_BATCH_SIZE)));
+			List<List<RType>> rows;
+			try {
+				rows = query.projection(OmeroDataWriter.IMAGE_INFORMATION_QUERY,
+						params);
+			} catch (final ServerError ex) {
+				throw new DSAccessException(
+						"Cannot retrieve the image hierarchy", ex);
+			}
+			for (final List<RType> row : rows) {
+				final Long imageId = ((RLong) row.get(0)).getValue();
+				if (infos.containsKey(imageId)) {
+					continue;
+				}
+				final Object[] info = new Object[4];
+				info[0] = imageId;
+				info[1] = ((RLong) row.get(2)).getValue();
+				info[2] = ((RLong) row.get(4)).getValue();
+				info[3] = ((RString) row.get(5)).getValue() + "/"
+						+ ((RString) row.get(3)).getValue() + "/"
+						+ ((RString) row.get(1)).getValue();
+				this.hierarchyCache.putImageInformation(imageId, info);
+				infos.put(imageId, info.clone());
+			}
+		}
+		return infos;
 	}
 	
 	private FileAnnotation createCSVFile(final String name, final String desc,
-			final List<String> columnNames,
-			final List<List<? extends Object>> tableColumnsData)
+			final List<OmeroTableColumn> columns, final long op)
 			throws ServerError, IOException, DSOutOfServiceException,
 			DSAccessException {
-		final int INC = 262144;
+		final OriginalFile originalFile = this.uploadCSVFile(name, columns,
+				op);
+		// save the file annotation.
+		final FileAnnotation fa = (FileAnnotation) this.saveAndReturnObject(
+				OmeroDataWriter.createExportAnnotation(originalFile, desc));
+		this.recordJournal(op, OmeroDataWriter.JOURNAL_ANNOTATION, fa);
 		
+		return fa;
+	}
+	
+	private OriginalFile uploadCSVFile(final String name,
+			final List<OmeroTableColumn> columns, final long op)
+			throws ServerError, IOException, DSOutOfServiceException,
+			DSAccessException {
 		// To retrieve the image see above.
 		final String csvName = name + "_CSV";
-		final File file = File.createTempFile(csvName, ".csv");
-		final String localName = file.getName();
-		final String absolutePath = file.getAbsolutePath();
-		final String path = absolutePath.substring(0,
-				absolutePath.length() - localName.length());
-		
-		final FileWriter fw = new FileWriter(file);
-		final BufferedWriter bw = new BufferedWriter(fw);
-		int maxSize = 0;
-		for (int i = 0; i < columnNames.size(); i++) {
-			if (maxSize < tableColumnsData.get(i).size()) {
-				maxSize = tableColumnsData.get(i).size();
-			}
-			if (i > 0) {
-				bw.write(",");
-			}
-			bw.write(columnNames.get(i));
-			
-		}
-		bw.write("\n");
-		for (int y = 0; y < maxSize; y++) {
-			for (int i = 0; i < columnNames.size(); i++) {
-				if (i > 0) {
-					bw.write(",");
+		final boolean compressed = this.compressedTransfer;
+		final String fileName = compressed
+				? csvName + ".csv" + OmeroDataWriter.GZIP_SUFFIX
+				: csvName + ".csv";
+		final String mimetype = compressed ? OmeroDataWriter.GZIP_FILETYPE
+				: "fileMimeType";
+		OriginalFile originalFile;
+		if (this.csvStreaming) {
+			// Rows are serialized straight into upload chunks, the size is
+			// set by the server when the raw file store is saved
+			originalFile = this.createOriginalFile(fileName, "", 0,
+					mimetype);
+			this.recordJournal(op, OmeroDataWriter.JOURNAL_ORIGINAL_FILE,
+					originalFile);
+			originalFile = this.uploadOriginalFile(originalFile, out -> {
+				if (!compressed) {
+					this.csvSerializer.write(columns, out);
+					return;
 				}
-				final List<? extends Object> tableColumnData = tableColumnsData
-						.get(i);
-				if (tableColumnData.size() > y) {
-					bw.write(String.valueOf(tableColumnData.get(y)));
-				} else {
-					bw.write("");
+				try (OutputStream gzip = new GZIPOutputStream(out,
+						OmeroDataWriter.INC)) {
+					this.csvSerializer.write(columns, gzip);
 				}
+			});
+		} else {
+			final File file = File.createTempFile(csvName, ".csv");
+			try {
+				final String localName = file.getName();
+				final String absolutePath = file.getAbsolutePath();
+				final String path = absolutePath.substring(0,
+						absolutePath.length() - localName.length());
+				
+				try (OutputStream out = compressed
+						? new GZIPOutputStream(new FileOutputStream(file),
+								OmeroDataWriter.INC)
+						: new BufferedOutputStream(
+								new FileOutputStream(file))) {
+					this.csvSerializer.write(columns, out);
+				}
+				
+				// or "application/octet-stream"
+				originalFile = this.createOriginalFile(fileName, path,
+						file.length(), mimetype);
+				this.recordJournal(op, OmeroDataWriter.JOURNAL_ORIGINAL_FILE,
+						originalFile);
+				
+				originalFile = this.uploadOriginalFile(originalFile, file,
+						null);
+			} finally {
+				file.delete();
 			}
-			bw.write("\n");
-		}
-		bw.flush();
-		bw.close();
-		fw.close();
-		
-		// create the original file object.
-		OriginalFile originalFile = new OriginalFileI();
-		originalFile.setName(omero.rtypes.rstring(csvName + ".csv"));
-		originalFile.setPath(omero.rtypes.rstring(path));
-		originalFile.setSize(omero.rtypes.rlong(file.length()));
-		final ChecksumAlgorithm checksumAlgorithm = new ChecksumAlgorithmI();
-		checksumAlgorithm
-				.setValue(omero.rtypes.rstring(ChecksumAlgorithmSHA1160.value));
-		originalFile.setHasher(checksumAlgorithm);
-		originalFile.setMimetype(omero.rtypes.rstring("fileMimeType")); // or
-																		// "application/octet-stream"
-		// Now we save the originalFile object
-		originalFile = (OriginalFile) this.dataManager
-				.saveAndReturnObject(this.ctx, originalFile);
-		
-		long pos = 0;
-		int rlen;
-		final byte[] buf = new byte[INC];
-		ByteBuffer bbuf;
-		// Open file and read stream
-		try (FileInputStream stream = new FileInputStream(file)) {
-			this.rawFileStore.setFileId(originalFile.getId().getValue());
-			while ((rlen = stream.read(buf)) > 0) {
-				this.rawFileStore.write(buf, pos, rlen);
-				pos += rlen;
-				bbuf = ByteBuffer.wrap(buf);
-				bbuf.limit(rlen);
-			}
-			originalFile = this.rawFileStore.save();
-		} finally {
-			this.rawFileStore.close();
 		}
+		return originalFile;
+	}
+	
+	private OriginalFile uploadColumnarFile(final String name,
+			final List<OmeroTableColumn> columns, final long op)
+			throws ServerError, IOException, DSOutOfServiceException,
+			DSAccessException {
+		// The chunks are already deflated, compressed transfer would not
+		// gain anything and the file has to stay seekable
+		OriginalFile originalFile = this.createOriginalFile(
+				name + "_COLUMNS" + OmeroDataWriter.COLUMNAR_SUFFIX, "", 0,
+				OmeroDataWriter.COLUMNAR_FILETYPE);
+		this.recordJournal(op, OmeroDataWriter.JOURNAL_ORIGINAL_FILE,
+				originalFile);
+		originalFile = this.uploadOriginalFile(originalFile,
+				out -> this.columnarSerializer.write(columns, out));
+		return originalFile;
+	}
+	
+	private static FileAnnotation createExportAnnotation(
+			final OriginalFile originalFile, final String desc) {
 		// now we have an original File in DB and raw data uploaded.
 		// We now need to link the Original file to the image using
 		// the File annotation object. That's the way to do it.
-		FileAnnotation fa = new FileAnnotationI();
+		final FileAnnotation fa = new FileAnnotationI();
 		fa.setFile(originalFile);
 		// The description set above e.g. PointsModel
 		fa.setDescription(omero.rtypes.rstring(desc));
 		// The name space you have set to identify the file annotation.
 		fa.setNs(omero.rtypes.rstring(MapAnnotationData.NS_CLIENT_CREATED));
-		
-		// save the file annotation.
-		fa = (FileAnnotation) this.dataManager.saveAndReturnObject(this.ctx,
-				fa);
-		
 		return fa;
 	}
 	
 	public static void main(final String[] args) {
 		String hostName = "localhost", port = "4064", userName = null,
-				password = null;
+				password = null, target = null, workers = "1",
+				jsonKeyPaths = null;
 		System.getProperty(
 				Paths.get(".").toAbsolutePath().normalize().toString());
 		if (args.length == 0) {
@@ -748,7 +2526,20 @@ public class OmeroDataWriter {
 			System.out.println("-p <password>");
 			System.out.println(
 					"-t <target>, target directory to launch the importer");
+			System.out.println(
+					"-w <workers>, parallel import workers, 1 by default");
+			System.out.println(
+					"-s, attach .json/.csv sidecars to the imported images");
+			System.out.println(
+					"-a, annotation only, the importer is never started");
+			System.out.println(
+					"-m, print the operation timings before exiting");
+			System.out.println("-j <paths>, comma separated JSON key paths"
+					+ " copied into a map annotation");
 		}
+		boolean annotationOnly = false;
+		boolean sidecars = false;
+		boolean printMetrics = false;
 		
 		for (int i = 0; i < args.length; i++) {
 			if (args[i].equals("-H")) {
@@ -764,6 +2555,22 @@ public class OmeroDataWriter {
 				password = args[i + 1];
 			}
 			if (args[i].equals("-t")) {
+				target = args[i + 1];
+			}
+			if (args[i].equals("-w")) {
+				workers = args[i + 1];
+			}
+			if (args[i].equals("-s")) {
+				sidecars = true;
+			}
+			if (args[i].equals("-a")) {
+				annotationOnly = true;
+			}
+			if (args[i].equals("-m")) {
+				printMetrics = true;
+			}
+			if (args[i].equals("-j")) {
+				jsonKeyPaths = args[i + 1];
 			}
 		}
 		
@@ -783,14 +2590,36 @@ public class OmeroDataWriter {
 			return;
 		}
 		
-		// final File f = new File(target);
-		// if (!f.exists() || !f.isDirectory()) {
-		// System.out.println("ERROR: the target specified is invalid");
-		// return;
-		// }
+		File targetDir = null;
+		if (target != null) {
+			targetDir = new File(target);
+			if (!targetDir.exists() || !targetDir.isDirectory()) {
+				System.out.println("ERROR: the target specified is invalid");
+				return;
+			}
+		}
+		
+		Integer workersI = null;
+		try {
+			workersI = Integer.valueOf(workers);
+		} catch (final Exception ex) {
+			// ex.printStackTrace();
+		}
+		if ((workersI == null) || (workersI < 1)) {
+			System.out.println("ERROR: the number of workers is invalid");
+			return;
+		}
 		
 		final OmeroDataWriter dw = new OmeroDataWriter(hostName, portI,
 				userName, password);
+		dw.setAnnotationOnly(annotationOnly);
+		if (jsonKeyPaths != null) {
+			dw.setJsonKeyPaths(Arrays.asList(jsonKeyPaths.split(",")));
+		}
+		final OmeroTextMetrics metrics = new OmeroTextMetrics();
+		if (printMetrics) {
+			dw.setMetrics(metrics);
+		}
 		try {
 			dw.init();
 		} catch (final Exception ex) {
@@ -798,6 +2627,27 @@ public class OmeroDataWriter {
 			dw.close();
 			return;
 		}
+		System.out.println("Startup time: " + dw.getStartupTime() + " ms");
+		
+		if (targetDir != null) {
+			final OmeroBulkImporter importer = new OmeroBulkImporter(dw,
+					dw.getImportConfig(), workersI);
+			importer.setAttachSidecars(sidecars);
+			try {
+				final int imported = importer.importDirectory(targetDir);
+				System.out.println("Imported " + imported + " filesets");
+				for (final Map.Entry<String, Exception> failure : importer
+						.getFailures().entrySet()) {
+					System.out.println("ERROR: " + failure.getKey() + " "
+							+ failure.getValue().getMessage());
+				}
+			} catch (final Exception ex) {
+				System.out.println("ERROR: " + ex.getMessage());
+			}
+			metrics.dump(System.out);
+			dw.close();
+			return;
+		}
 		
 		try {
 			// final Map<String, String> map = new LinkedHashMap<String,
@@ -870,6 +2720,25 @@ public class OmeroDataWriter {
 		// return;
 		// }
 		
+		metrics.dump(System.out);
 		dw.close();
 	}
+	
+	private interface StreamProducer {
+		void write(OutputStream out) throws IOException;
+	}
+	
+	private interface RawFileUpload {
+		void write(RawFileStorePrx rawFileStore)
+				throws IOException, ServerError;
+	}
+	
+	private static final class PreparedTable {
+		private IObject tableLink;
+		private long tableOp;
+		private IObject csvLink;
+		private long csvOp;
+		private IObject columnarLink;
+		private long columnarOp;
+	}
 }
@@ -0,0 +1,165 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import omero.gateway.exception.DSOutOfServiceException;
+
+// Each task gets a writer no other thread uses, idle sessions are kept
+// alive and expired ones logged in again
+public class OmeroDataWriterPool {
+	private final String hostName;
+	private final Integer port;
+	private final String userName;
+	private final String psw;
+	private final int size;
+	private final long keepAliveMillis;
+	private final OmeroHierarchyCache hierarchyCache;
+	private final Deque<OmeroDataWriter> idle;
+	private ScheduledExecutorService keepAlive;
+	private int waiting;
+	private boolean closed;
+
+	public OmeroDataWriterPool(final String hostName, final Integer port,
+			final String userName, final String psw, final int size,
+			final long keepAliveMillis) {
+		this.hostName = hostName;
+		this.port = port;
+		this.userName = userName;
+		this.psw = psw;
+		this.size = size;
+		this.keepAliveMillis = keepAliveMillis;
+		this.hierarchyCache = new OmeroHierarchyCache();
+		this.idle = new ArrayDeque<OmeroDataWriter>();
+		this.waiting = 0;
+		this.closed = false;
+	}
+
+	public synchronized void init() throws Exception {
+		for (int i = 0; i < this.size; i++) {
+			final OmeroDataWriter writer = new OmeroDataWriter(this.hostName,
+					this.port, this.userName, this.psw);
+			writer.setHierarchyCache(this.hierarchyCache);
+			try {
+				writer.init();
+			} catch (final Exception ex) {
+				writer.close();
+				this.close();
+				throw ex;
+			}
+			this.idle.add(writer);
+		}
+		// a daemon thread so that an unclosed pool does not keep the JVM up
+		this.keepAlive = Executors.newSingleThreadScheduledExecutor(r -> {
+			final Thread thread = new Thread(r, "omero-pool-keep-alive");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.keepAlive.scheduleWithFixedDelay(() -> this.keepIdleAlive(),
+				this.keepAliveMillis, this.keepAliveMillis,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public OmeroHierarchyCache getHierarchyCache() {
+		return this.hierarchyCache;
+	}
+
+	public int getSize() {
+		return this.size;
+	}
+
+	public synchronized OmeroDataWriter borrow()
+			throws InterruptedException {
+		this.waiting++;
+		try {
+			while (!this.closed && this.idle.isEmpty()) {
+				this.wait();
+			}
+		} finally {
+			this.waiting--;
+		}
+		if (this.closed)
+			throw new IllegalStateException("The writer pool is closed");
+		return this.idle.poll();
+	}
+
+	public void release(final OmeroDataWriter writer) {
+		synchronized (this) {
+			if (!this.closed) {
+				this.idle.offer(writer);
+				this.notify();
+				return;
+			}
+		}
+		writer.close();
+	}
+
+	public <T> T execute(final WriteTask<T> task) throws Exception {
+		return this.execute(task, false);
+	}
+
+	// Only idempotent tasks are retried after an expired session, the others
+	// may have been partly done
+	public <T> T execute(final WriteTask<T> task, final boolean idempotent)
+			throws Exception {
+		final OmeroDataWriter writer = this.borrow();
+		try {
+			try {
+				return task.run(writer);
+			} catch (final DSOutOfServiceException ex) {
+				if (writer.isAlive())
+					throw ex;
+				writer.reconnect();
+				if (!idempotent)
+					throw ex;
+				return task.run(writer);
+			}
+		} finally {
+			this.release(writer);
+		}
+	}
+
+	private void keepIdleAlive() {
+		for (int i = 0; i < this.size; i++) {
+			final OmeroDataWriter writer;
+			synchronized (this) {
+				// a writer being pinged is not available, leave the round
+				// to the callers
+				if (this.closed || (this.waiting > 0))
+					return;
+				writer = this.idle.poll();
+			}
+			if (writer == null)
+				return;
+			try {
+				if (!writer.isAlive()) {
+					writer.reconnect();
+				}
+			} catch (final Exception ex) {
+				// retried on the next round or when the writer is used
+			} finally {
+				this.release(writer);
+			}
+		}
+	}
+
+	public synchronized void close() {
+		this.closed = true;
+		if (this.keepAlive != null) {
+			this.keepAlive.shutdownNow();
+			this.keepAlive = null;
+		}
+		for (final OmeroDataWriter writer : this.idle) {
+			writer.close();
+		}
+		this.idle.clear();
+		this.notifyAll();
+	}
+
+	public interface WriteTask<T> {
+		T run(OmeroDataWriter writer) throws Exception;
+	}
+}
@@ -0,0 +1,244 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Name to ID indexes with a time to live and LRU eviction
+public class OmeroHierarchyCache {
+	// Fields of the image information, see getImageInformation
+	private static final int INFO_DATASET_ID = 1;
+	private static final int INFO_PROJECT_ID = 2;
+	private static final int INFO_PATH = 3;
+
+	private static final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+	private static final int DEFAULT_MAX_SIZE = 100000;
+
+	private long ttlNanos;
+	private int maxSize;
+	private final Index<String, Long> projects;
+	private final Index<Key, Long> datasets;
+	private final Index<Key, Long> images;
+	private final Index<Long, ImageInfo> imageInfos;
+
+	public OmeroHierarchyCache() {
+		this(OmeroHierarchyCache.DEFAULT_TTL,
+				OmeroHierarchyCache.DEFAULT_MAX_SIZE);
+	}
+
+	public OmeroHierarchyCache(final long ttlMillis, final int maxSize) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+		this.maxSize = maxSize;
+		this.projects = new Index<String, Long>();
+		this.datasets = new Index<Key, Long>();
+		this.images = new Index<Key, Long>();
+		this.imageInfos = new Index<Long, ImageInfo>();
+	}
+
+	public synchronized void setTimeToLive(final long ttlMillis) {
+		this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+	}
+
+	public synchronized long getTimeToLive() {
+		return TimeUnit.NANOSECONDS.toMillis(this.ttlNanos);
+	}
+
+	public synchronized void setMaximumSize(final int maxSize) {
+		this.maxSize = maxSize;
+		this.projects.trim();
+		this.datasets.trim();
+		this.images.trim();
+		this.imageInfos.trim();
+	}
+
+	public synchronized int getMaximumSize() {
+		return this.maxSize;
+	}
+
+	public synchronized Long getProjectId(final String projectName) {
+		return this.projects.lookup(projectName);
+	}
+
+	public synchronized void putProjectId(final String projectName,
+			final Long id) {
+		this.projects.store(projectName, id);
+	}
+
+	public synchronized Long getDatasetId(final Long projectId,
+			final String datasetName) {
+		return this.datasets.lookup(new Key(projectId, datasetName));
+	}
+
+	public synchronized void putDatasetId(final Long projectId,
+			final String datasetName, final Long id) {
+		this.datasets.store(new Key(projectId, datasetName), id);
+	}
+
+	public synchronized Long getImageId(final Long datasetId,
+			final String imageName) {
+		return this.images.lookup(new Key(datasetId, imageName));
+	}
+
+	public synchronized void putImageId(final Long datasetId,
+			final String imageName, final Long id) {
+		this.images.store(new Key(datasetId, imageName), id);
+	}
+
+	public synchronized Object[] getImageInformation(final Long imageId) {
+		final ImageInfo info = this.imageInfos.lookup(imageId);
+		return info == null ? null : info.fields;
+	}
+
+	public synchronized void putImageInformation(final Long imageId,
+			final Object[] infos) {
+		this.imageInfos.store(imageId, new ImageInfo(infos));
+	}
+
+	public synchronized void invalidate() {
+		this.projects.clear();
+		this.datasets.clear();
+		this.images.clear();
+		this.imageInfos.clear();
+	}
+
+	public synchronized void invalidateProject(final String projectName) {
+		final Long id = this.projects.lookup(projectName);
+		this.projects.remove(projectName);
+		if (id != null) {
+			this.invalidateDatasets(id);
+		}
+		// the project may have expired from the name index before its
+		// images, the information path starts with the project name
+		final String prefix = projectName + "/";
+		final Iterator<Entry<ImageInfo>> i = this.imageInfos.values()
+				.iterator();
+		while (i.hasNext()) {
+			if (i.next().value.path.startsWith(prefix)) {
+				i.remove();
+			}
+		}
+	}
+
+	public synchronized void invalidateDatasets(final Long projectId) {
+		final Iterator<Map.Entry<Key, Entry<Long>>> i = this.datasets
+				.entrySet().iterator();
+		while (i.hasNext()) {
+			final Map.Entry<Key, Entry<Long>> entry = i.next();
+			if (entry.getKey().parentId.equals(projectId)) {
+				this.invalidateImages(entry.getValue().value);
+				i.remove();
+			}
+		}
+		final Iterator<Entry<ImageInfo>> infos = this.imageInfos.values()
+				.iterator();
+		while (infos.hasNext()) {
+			if (projectId.equals(infos.next().value.projectId)) {
+				infos.remove();
+			}
+		}
+	}
+
+	public synchronized void invalidateImages(final Long datasetId) {
+		final Iterator<Key> i = this.images.keySet().iterator();
+		while (i.hasNext()) {
+			if (i.next().parentId.equals(datasetId)) {
+				i.remove();
+			}
+		}
+		final Iterator<Entry<ImageInfo>> infos = this.imageInfos.values()
+				.iterator();
+		while (infos.hasNext()) {
+			if (datasetId.equals(infos.next().value.datasetId)) {
+				infos.remove();
+			}
+		}
+	}
+
+	private static final class Entry<V> {
+		private final V value;
+		private final long created;
+
+		private Entry(final V value) {
+			this.value = value;
+			this.created = System.nanoTime();
+		}
+	}
+
+	private static final class ImageInfo {
+		private final Object[] fields;
+		private final Long datasetId;
+		private final Long projectId;
+		private final String path;
+
+		private ImageInfo(final Object[] fields) {
+			this.fields = fields;
+			this.datasetId = (Long) fields[OmeroHierarchyCache.INFO_DATASET_ID];
+			this.projectId = (Long) fields[OmeroHierarchyCache.INFO_PROJECT_ID];
+			this.path = (String) fields[OmeroHierarchyCache.INFO_PATH];
+		}
+	}
+
+	private static final class Key {
+		private final Long parentId;
+		private final String name;
+
+		private Key(final Long parentId, final String name) {
+			this.parentId = parentId;
+			this.name = name;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			final Key key = (Key) obj;
+			return this.parentId.equals(key.parentId)
+					&& this.name.equals(key.name);
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * this.parentId.hashCode()) + this.name.hashCode();
+		}
+	}
+
+	private final class Index<K, V> extends LinkedHashMap<K, Entry<V>> {
+		private static final long serialVersionUID = 1L;
+
+		private Index() {
+			super(16, 0.75f, true);
+		}
+
+		private V lookup(final K key) {
+			final Entry<V> entry = this.get(key);
+			if (entry == null)
+				return null;
+			final long age = System.nanoTime() - entry.created;
+			if (age > OmeroHierarchyCache.this.ttlNanos) {
+				this.remove(key);
+				return null;
+			}
+			return entry.value;
+		}
+
+		private void store(final K key, final V value) {
+			this.put(key, new Entry<V>(value));
+		}
+
+		private void trim() {
+			final Iterator<K> i = this.keySet().iterator();
+			while ((this.size() > OmeroHierarchyCache.this.maxSize)
+					&& i.hasNext()) {
+				i.next();
+				i.remove();
+			}
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<K, Entry<V>> eldest) {
+			return this.size() > OmeroHierarchyCache.this.maxSize;
+		}
+	}
+}
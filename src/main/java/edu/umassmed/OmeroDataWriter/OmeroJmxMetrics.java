@@ -0,0 +1,52 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Registered as
+// edu.umassmed.OmeroDataWriter:type=Metrics,name=NAME,operation=OPERATION
+public class OmeroJmxMetrics extends OmeroTextMetrics {
+	private final String name;
+	private final MBeanServer server;
+	private final List<ObjectName> registered;
+
+	public OmeroJmxMetrics(final String name) {
+		this.name = name;
+		this.server = ManagementFactory.getPlatformMBeanServer();
+		this.registered = new ArrayList<ObjectName>();
+	}
+
+	@Override
+	protected void statsCreated(final OmeroOperationStats operationStats) {
+		try {
+			final ObjectName objectName = new ObjectName(
+					"edu.umassmed.OmeroDataWriter:type=Metrics,name="
+							+ ObjectName.quote(this.name) + ",operation="
+							+ operationStats.getOperation());
+			this.server.registerMBean(operationStats, objectName);
+			synchronized (this.registered) {
+				this.registered.add(objectName);
+			}
+		} catch (final JMException ex) {
+			// the statistics are still kept and dumped as text
+		}
+	}
+
+	public void unregister() {
+		synchronized (this.registered) {
+			for (final ObjectName objectName : this.registered) {
+				try {
+					this.server.unregisterMBean(objectName);
+				} catch (final JMException ex) {
+					// already gone
+				}
+			}
+			this.registered.clear();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+// Key paths are dot separated keys with [index] or [*] for array elements,
+// e.g. "Microscope.Components[*].Model". Invalid JSON only stops the
+// extraction, see isComplete
+public class OmeroJsonMetadataExtractor extends OutputStream {
+	private static final int VALUE = 0;
+	private static final int OBJECT_START = 1;
+	private static final int KEY = 2;
+	private static final int COLON = 3;
+	private static final int AFTER_VALUE = 4;
+	private static final int STRING = 5;
+	private static final int ESCAPE = 6;
+	private static final int UNICODE = 7;
+	private static final int LITERAL = 8;
+	private static final int ARRAY_START = 9;
+	private static final int DONE = 10;
+	private static final int FAILED = 11;
+
+	private final Pattern paths;
+	private final Map<String, String> values;
+	private final List<Frame> stack;
+	private final ByteArrayOutputStream pending;
+	private final StringBuilder text;
+	private int state;
+	private boolean inKey;
+	private boolean capture;
+	private String valuePath;
+	private int unicode;
+	private int unicodeDigits;
+
+	public OmeroJsonMetadataExtractor(final Collection<String> keyPaths) {
+		final StringBuilder regex = new StringBuilder();
+		for (final String keyPath : keyPaths) {
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			final String[] parts = keyPath.split("\\[\\*\\]", -1);
+			for (int i = 0; i < parts.length; i++) {
+				if (i > 0) {
+					regex.append("\\[\\d+\\]");
+				}
+				regex.append(Pattern.quote(parts[i]));
+			}
+		}
+		this.paths = Pattern.compile(regex.toString());
+		this.values = new LinkedHashMap<String, String>();
+		this.stack = new ArrayList<Frame>();
+		this.pending = new ByteArrayOutputStream();
+		this.text = new StringBuilder();
+		this.state = OmeroJsonMetadataExtractor.VALUE;
+	}
+
+	public InputStream wrap(final InputStream in) {
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				final int b = super.read();
+				if (b >= 0) {
+					OmeroJsonMetadataExtractor.this.write(b);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(final byte[] b, final int off, final int len)
+					throws IOException {
+				final int n = super.read(b, off, len);
+				if (n > 0) {
+					OmeroJsonMetadataExtractor.this.write(b, off, n);
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(final long n) throws IOException {
+				// skipped bytes would never reach the parser
+				final byte[] buf = new byte[(int) Math.min(n, 8192)];
+				final int read = this.read(buf, 0, buf.length);
+				return Math.max(0, read);
+			}
+
+			@Override
+			public boolean markSupported() {
+				return false;
+			}
+		};
+	}
+
+	public Map<String, String> getValues() {
+		return this.values;
+	}
+
+	public boolean isComplete() {
+		if (this.state == OmeroJsonMetadataExtractor.LITERAL) {
+			// a top level number ends with the document
+			this.endLiteral();
+		}
+		return this.state == OmeroJsonMetadataExtractor.DONE;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		for (int i = off; i < (off + len); i++) {
+			if (this.state == OmeroJsonMetadataExtractor.FAILED)
+				return;
+			this.accept(b[i]);
+		}
+	}
+
+	@Override
+	public void write(final int b) {
+		if (this.state != OmeroJsonMetadataExtractor.FAILED) {
+			this.accept((byte) b);
+		}
+	}
+
+	private void accept(final byte b) {
+		switch (this.state) {
+			case STRING:
+				if (b == '"') {
+					this.endString();
+				} else if (b == '\\') {
+					this.state = OmeroJsonMetadataExtractor.ESCAPE;
+				} else if (this.capture) {
+					this.pending.write(b);
+				}
+				return;
+			case ESCAPE:
+				this.escape(b);
+				return;
+			case UNICODE:
+				final int digit = Character.digit(b, 16);
+				if (digit < 0) {
+					this.state = OmeroJsonMetadataExtractor.FAILED;
+					return;
+				}
+				this.unicode = (this.unicode << 4) | digit;
+				if (++this.unicodeDigits == 4) {
+					this.appendChar((char) this.unicode);
+					this.state = OmeroJsonMetadataExtractor.STRING;
+				}
+				return;
+			case LITERAL:
+				if ((b == ',') || (b == '}') || (b == ']')
+						|| OmeroJsonMetadataExtractor.isSpace(b)) {
+					this.endLiteral();
+					this.accept(b);
+				} else if (this.capture) {
+					this.pending.write(b);
+				}
+				return;
+			default:
+		}
+		if (OmeroJsonMetadataExtractor.isSpace(b))
+			return;
+		switch (this.state) {
+			case VALUE:
+				this.startValue(b);
+				break;
+			case ARRAY_START:
+				if (b == ']') {
+					this.endContainer();
+				} else {
+					this.startValue(b);
+				}
+				break;
+			case OBJECT_START:
+				if (b == '}') {
+					this.endContainer();
+				} else {
+					this.startKey(b);
+				}
+				break;
+			case KEY:
+				this.startKey(b);
+				break;
+			case COLON:
+				this.state = b == ':' ? OmeroJsonMetadataExtractor.VALUE
+						: OmeroJsonMetadataExtractor.FAILED;
+				break;
+			case AFTER_VALUE:
+				this.afterValue(b);
+				break;
+			default:
+				// anything after the document is invalid
+				this.state = OmeroJsonMetadataExtractor.FAILED;
+		}
+	}
+
+	private void startValue(final byte b) {
+		this.valuePath = this.currentPath();
+		if (b == '{') {
+			this.stack.add(new Frame(false, this.valuePath));
+			this.state = OmeroJsonMetadataExtractor.OBJECT_START;
+		} else if (b == '[') {
+			this.stack.add(new Frame(true, this.valuePath));
+			this.state = OmeroJsonMetadataExtractor.ARRAY_START;
+		} else if (b == '"') {
+			this.inKey = false;
+			this.capture = this.paths.matcher(this.valuePath).matches();
+			this.state = OmeroJsonMetadataExtractor.STRING;
+		} else if ((b == '-') || ((b >= '0') && (b <= '9')) || (b == 't')
+				|| (b == 'f') || (b == 'n')) {
+			this.capture = this.paths.matcher(this.valuePath).matches();
+			if (this.capture) {
+				this.pending.write(b);
+			}
+			this.state = OmeroJsonMetadataExtractor.LITERAL;
+		} else {
+			this.state = OmeroJsonMetadataExtractor.FAILED;
+		}
+	}
+
+	private void startKey(final byte b) {
+		if (b != '"') {
+			this.state = OmeroJsonMetadataExtractor.FAILED;
+			return;
+		}
+		this.inKey = true;
+		this.capture = true;
+		this.state = OmeroJsonMetadataExtractor.STRING;
+	}
+
+	private void afterValue(final byte b) {
+		if (this.stack.isEmpty()) {
+			this.state = OmeroJsonMetadataExtractor.FAILED;
+			return;
+		}
+		final Frame top = this.stack.get(this.stack.size() - 1);
+		if (b == ',') {
+			if (top.array) {
+				top.index++;
+				this.state = OmeroJsonMetadataExtractor.VALUE;
+			} else {
+				this.state = OmeroJsonMetadataExtractor.KEY;
+			}
+		} else if (top.array ? b == ']' : b == '}') {
+			this.endContainer();
+		} else {
+			this.state = OmeroJsonMetadataExtractor.FAILED;
+		}
+	}
+
+	private void endContainer() {
+		this.stack.remove(this.stack.size() - 1);
+		this.endValue();
+	}
+
+	private void endValue() {
+		this.capture = false;
+		this.state = this.stack.isEmpty() ? OmeroJsonMetadataExtractor.DONE
+				: OmeroJsonMetadataExtractor.AFTER_VALUE;
+	}
+
+	private void endString() {
+		if (!this.capture) {
+			this.endValue();
+			return;
+		}
+		final String value = this.takeText();
+		if (this.inKey) {
+			this.stack.get(this.stack.size() - 1).key = value;
+			this.capture = false;
+			this.state = OmeroJsonMetadataExtractor.COLON;
+			return;
+		}
+		this.values.put(this.valuePath, value);
+		this.endValue();
+	}
+
+	private void endLiteral() {
+		if (this.capture) {
+			final String literal = this.takeText();
+			if (!"null".equals(literal)) {
+				this.values.put(this.valuePath, literal);
+			}
+		}
+		this.endValue();
+	}
+
+	private void escape(final byte b) {
+		this.state = OmeroJsonMetadataExtractor.STRING;
+		switch (b) {
+			case 'u':
+				this.unicode = 0;
+				this.unicodeDigits = 0;
+				this.state = OmeroJsonMetadataExtractor.UNICODE;
+				return;
+			case 'b':
+				this.appendChar('\b');
+				return;
+			case 'f':
+				this.appendChar('\f');
+				return;
+			case 'n':
+				this.appendChar('\n');
+				return;
+			case 'r':
+				this.appendChar('\r');
+				return;
+			case 't':
+				this.appendChar('\t');
+				return;
+			default:
+				this.appendChar((char) b);
+		}
+	}
+
+	private void appendChar(final char c) {
+		if (!this.capture)
+			return;
+		// decode the raw bytes first so that the order is kept
+		this.flushPending();
+		this.text.append(c);
+	}
+
+	private void flushPending() {
+		if (this.pending.size() > 0) {
+			this.text.append(new String(this.pending.toByteArray(),
+					StandardCharsets.UTF_8));
+			this.pending.reset();
+		}
+	}
+
+	private String takeText() {
+		this.flushPending();
+		final String value = this.text.toString();
+		this.text.setLength(0);
+		return value;
+	}
+
+	private String currentPath() {
+		if (this.stack.isEmpty())
+			return "";
+		final Frame top = this.stack.get(this.stack.size() - 1);
+		if (top.array)
+			return top.path + "[" + top.index + "]";
+		return top.path.isEmpty() ? top.key : top.path + "." + top.key;
+	}
+
+	private static boolean isSpace(final byte b) {
+		return (b == ' ') || (b == '\n') || (b == '\r') || (b == '\t');
+	}
+
+	private static final class Frame {
+		private final boolean array;
+		private final String path;
+		private String key;
+		private int index;
+
+		private Frame(final boolean array, final String path) {
+			this.array = array;
+			this.path = path;
+			this.key = null;
+			this.index = 0;
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Percentiles are the upper bound of power of two microsecond buckets
+public class OmeroOperationStats implements OmeroOperationStatsMXBean {
+	private static final int BUCKETS = 40;
+
+	private final String operation;
+	private final AtomicLongArray histogram;
+	private final LongAdder count;
+	private final LongAdder errors;
+	private final LongAdder bytes;
+	private final LongAdder rows;
+	private final LongAdder totalNanos;
+	private final AtomicLong maxNanos;
+
+	public OmeroOperationStats(final String operation) {
+		this.operation = operation;
+		this.histogram = new AtomicLongArray(OmeroOperationStats.BUCKETS);
+		this.count = new LongAdder();
+		this.errors = new LongAdder();
+		this.bytes = new LongAdder();
+		this.rows = new LongAdder();
+		this.totalNanos = new LongAdder();
+		this.maxNanos = new AtomicLong();
+	}
+
+	public String getOperation() {
+		return this.operation;
+	}
+
+	public void recordLatency(final long nanos) {
+		final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+		final int bucket = Math.min(OmeroOperationStats.BUCKETS - 1,
+				64 - Long.numberOfLeadingZeros(micros));
+		this.histogram.incrementAndGet(bucket);
+		this.count.increment();
+		this.totalNanos.add(nanos);
+		long max = this.maxNanos.get();
+		while ((nanos > max) && !this.maxNanos.compareAndSet(max, nanos)) {
+			max = this.maxNanos.get();
+		}
+	}
+
+	public void recordError() {
+		this.errors.increment();
+	}
+
+	public void addBytes(final long value) {
+		this.bytes.add(value);
+	}
+
+	public void addRows(final long value) {
+		this.rows.add(value);
+	}
+
+	@Override
+	public long getCount() {
+		return this.count.sum();
+	}
+
+	@Override
+	public long getErrors() {
+		return this.errors.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return this.bytes.sum();
+	}
+
+	@Override
+	public long getRows() {
+		return this.rows.sum();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		final long n = this.count.sum();
+		if (n == 0)
+			return 0;
+		return (this.totalNanos.sum() / 1000.0) / n;
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(this.maxNanos.get());
+	}
+
+	@Override
+	public long getP50Micros() {
+		return this.getPercentileMicros(0.5);
+	}
+
+	@Override
+	public long getP90Micros() {
+		return this.getPercentileMicros(0.9);
+	}
+
+	@Override
+	public long getP99Micros() {
+		return this.getPercentileMicros(0.99);
+	}
+
+	public long getPercentileMicros(final double quantile) {
+		long total = 0;
+		for (int i = 0; i < OmeroOperationStats.BUCKETS; i++) {
+			total += this.histogram.get(i);
+		}
+		if (total == 0)
+			return 0;
+		final long rank = (long) Math.ceil(quantile * total);
+		long seen = 0;
+		for (int i = 0; i < OmeroOperationStats.BUCKETS; i++) {
+			seen += this.histogram.get(i);
+			if (seen >= rank)
+				return Math.min((1L << i) - 1, this.getMaxMicros());
+		}
+		return this.getMaxMicros();
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"%s: count=%d errors=%d mean=%.1fus p50=%dus p90=%dus"
+						+ " p99=%dus max=%dus bytes=%d rows=%d",
+				this.operation, this.getCount(), this.getErrors(),
+				this.getMeanMicros(), this.getP50Micros(),
+				this.getP90Micros(), this.getP99Micros(),
+				this.getMaxMicros(), this.getBytes(), this.getRows());
+	}
+}
@@ -0,0 +1,22 @@
+package edu.umassmed.OmeroDataWriter;
+
+// Latencies are in microseconds
+public interface OmeroOperationStatsMXBean {
+	long getCount();
+
+	long getErrors();
+
+	long getBytes();
+
+	long getRows();
+
+	double getMeanMicros();
+
+	long getMaxMicros();
+
+	long getP50Micros();
+
+	long getP90Micros();
+
+	long getP99Micros();
+}
@@ -0,0 +1,105 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import Ice.AsyncResult;
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+
+// Prefetches the next chunk, the callback runs once on close
+public class OmeroRawFileInputStream extends InputStream {
+	private final RawFileStorePrx rawFileStore;
+	private final long size;
+	private final int chunkSize;
+	private final Runnable onClose;
+	private byte[] buf;
+	private int offset;
+	private long nextPos;
+	private AsyncResult inFlight;
+	private boolean closed;
+
+	public OmeroRawFileInputStream(final RawFileStorePrx rawFileStore,
+			final long size, final int chunkSize, final Runnable onClose) {
+		this.rawFileStore = rawFileStore;
+		this.size = size;
+		this.chunkSize = chunkSize;
+		this.onClose = onClose;
+		this.buf = new byte[0];
+		this.offset = 0;
+		this.nextPos = 0;
+		this.inFlight = null;
+		this.closed = false;
+		this.requestNext();
+	}
+
+	private void requestNext() {
+		if (this.nextPos >= this.size)
+			return;
+		final int len = (int) Math.min(this.chunkSize,
+				this.size - this.nextPos);
+		this.inFlight = this.rawFileStore.begin_read(this.nextPos, len);
+		this.nextPos += len;
+	}
+
+	private boolean fill() throws IOException {
+		if (this.closed)
+			throw new IOException("The stream is closed");
+		if (this.offset < this.buf.length)
+			return true;
+		if (this.inFlight == null)
+			return false;
+		try {
+			this.buf = this.rawFileStore.end_read(this.inFlight);
+		} catch (final ServerError ex) {
+			throw new IOException("Cannot read from the raw file store", ex);
+		} finally {
+			this.inFlight = null;
+		}
+		this.offset = 0;
+		this.requestNext();
+		return this.buf.length > 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!this.fill())
+			return -1;
+		return this.buf[this.offset++] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len)
+			throws IOException {
+		if (len == 0)
+			return 0;
+		if (!this.fill())
+			return -1;
+		final int n = Math.min(len, this.buf.length - this.offset);
+		System.arraycopy(this.buf, this.offset, b, off, n);
+		this.offset += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return this.buf.length - this.offset;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed)
+			return;
+		this.closed = true;
+		try {
+			if (this.inFlight != null) {
+				this.rawFileStore.end_read(this.inFlight);
+			}
+		} catch (final ServerError ex) {
+			// the content is not needed any more
+		} finally {
+			this.inFlight = null;
+			this.onClose.run();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import Ice.AsyncResult;
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+
+// Closing writes the last chunk, the caller still saves and releases the
+// raw file store
+public class OmeroRawFileOutputStream extends OutputStream {
+	private final RawFileStorePrx rawFileStore;
+	private final OmeroWriterMetrics metrics;
+	private byte[] buf;
+	private byte[] spare;
+	private int count;
+	private long pos;
+	private AsyncResult inFlight;
+	private long inFlightStart;
+	private int inFlightLength;
+	private boolean closed;
+
+	public OmeroRawFileOutputStream(final RawFileStorePrx rawFileStore,
+			final int chunkSize) {
+		this(rawFileStore, chunkSize, OmeroWriterMetrics.NONE);
+	}
+
+	public OmeroRawFileOutputStream(final RawFileStorePrx rawFileStore,
+			final int chunkSize, final OmeroWriterMetrics metrics) {
+		this.rawFileStore = rawFileStore;
+		this.metrics = metrics;
+		this.buf = new byte[chunkSize];
+		this.spare = new byte[chunkSize];
+		this.count = 0;
+		this.pos = 0;
+		this.inFlight = null;
+		this.closed = false;
+	}
+
+	public long getPosition() {
+		return this.pos + this.count;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		if (this.count == this.buf.length) {
+			this.writeChunk();
+		}
+		this.buf[this.count++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (this.count == this.buf.length) {
+				this.writeChunk();
+			}
+			final int n = Math.min(len, this.buf.length - this.count);
+			System.arraycopy(b, off, this.buf, this.count, n);
+			this.count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.closed)
+			return;
+		this.closed = true;
+		if (this.count > 0) {
+			this.writeChunk();
+		}
+		this.await();
+	}
+
+	private void writeChunk() throws IOException {
+		this.await();
+		this.inFlightStart = System.nanoTime();
+		this.inFlightLength = this.count;
+		this.inFlight = this.rawFileStore.begin_write(this.buf, this.pos,
+				this.count);
+		this.pos += this.count;
+		this.count = 0;
+		final byte[] tmp = this.buf;
+		this.buf = this.spare;
+		this.spare = tmp;
+	}
+
+	private void await() throws IOException {
+		if (this.inFlight == null)
+			return;
+		try {
+			this.rawFileStore.end_write(this.inFlight);
+			this.metrics.recordLatency(OmeroWriterMetrics.RAW_FILE_WRITE,
+					System.nanoTime() - this.inFlightStart);
+			this.metrics.addBytes(OmeroWriterMetrics.RAW_FILE_WRITE,
+					this.inFlightLength);
+		} catch (final ServerError ex) {
+			this.metrics.recordError(OmeroWriterMetrics.RAW_FILE_WRITE);
+			throw new IOException("Cannot write to the raw file store", ex);
+		} finally {
+			this.inFlight = null;
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import omero.grid.Column;
+
+// The arrays are referenced, not copied
+public class OmeroTableBuilder {
+	private final List<OmeroTableColumn> columns;
+
+	public OmeroTableBuilder() {
+		this.columns = new ArrayList<OmeroTableColumn>();
+	}
+
+	public OmeroTableBuilder addColumn(final OmeroTableColumn column) {
+		this.columns.add(column);
+		return this;
+	}
+
+	public OmeroTableBuilder addLongColumn(final String name,
+			final long[] values) {
+		return this.addColumn(new OmeroTableColumn.LongData(name, values));
+	}
+
+	public OmeroTableBuilder addDoubleColumn(final String name,
+			final double[] values) {
+		return this.addColumn(new OmeroTableColumn.DoubleData(name, values));
+	}
+
+	public OmeroTableBuilder addBooleanColumn(final String name,
+			final boolean[] values) {
+		return this.addColumn(new OmeroTableColumn.BooleanData(name, values));
+	}
+
+	public OmeroTableBuilder addStringColumn(final String name,
+			final String[] values) {
+		return this.addColumn(
+				OmeroTableColumn.StringData.encode(name, values));
+	}
+
+	public OmeroTableBuilder addStringColumn(final String name,
+			final int[] codes, final String[] dictionary) {
+		return this.addColumn(
+				new OmeroTableColumn.StringData(name, codes, dictionary));
+	}
+
+	public List<OmeroTableColumn> getColumns() {
+		return Collections.unmodifiableList(this.columns);
+	}
+
+	public List<String> getColumnNames() {
+		final List<String> names = new ArrayList<String>();
+		for (final OmeroTableColumn column : this.columns) {
+			names.add(column.getName());
+		}
+		return names;
+	}
+
+	public int getRowCount() {
+		int rows = 0;
+		for (final OmeroTableColumn column : this.columns) {
+			rows = Math.max(rows, column.size());
+		}
+		return rows;
+	}
+
+	public Column[] toGridColumns(final int from, final int to) {
+		final Column[] gridColumns = new Column[this.columns.size()];
+		for (int i = 0; i < gridColumns.length; i++) {
+			gridColumns[i] = this.columns.get(i).toGridColumn(from, to);
+		}
+		return gridColumns;
+	}
+}
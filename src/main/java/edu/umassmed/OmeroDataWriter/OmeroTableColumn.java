@@ -0,0 +1,309 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import omero.grid.BoolColumn;
+import omero.grid.Column;
+import omero.grid.DoubleColumn;
+import omero.grid.LongColumn;
+import omero.grid.StringColumn;
+
+// Rows past the end of a shorter column are written as 0, false or an
+// empty string in the table and as an empty cell in the CSV
+public abstract class OmeroTableColumn {
+	private final String name;
+
+	protected OmeroTableColumn(final String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public abstract int size();
+
+	public abstract Class<?> getType();
+
+	public abstract String getValueAsString(int row);
+
+	public abstract Column toGridColumn(int from, int to);
+
+	public static List<OmeroTableColumn> of(final List<String> columnNames,
+			final List<List<? extends Object>> tableColumnsData) {
+		final List<OmeroTableColumn> columns = new ArrayList<OmeroTableColumn>();
+		for (int i = 0; i < columnNames.size(); i++) {
+			columns.add(new ListData(columnNames.get(i),
+					tableColumnsData.get(i)));
+		}
+		return columns;
+	}
+
+	private static int sliceStart(final int from, final int size) {
+		return Math.min(from, size);
+	}
+
+	public static class LongData extends OmeroTableColumn {
+		private final long[] values;
+
+		public LongData(final String name, final long[] values) {
+			super(name);
+			this.values = values;
+		}
+
+		public long[] getValues() {
+			return this.values;
+		}
+
+		@Override
+		public int size() {
+			return this.values.length;
+		}
+
+		@Override
+		public Class<?> getType() {
+			return Long.class;
+		}
+
+		@Override
+		public String getValueAsString(final int row) {
+			return Long.toString(this.values[row]);
+		}
+
+		@Override
+		public Column toGridColumn(final int from, final int to) {
+			final long[] slice = new long[to - from];
+			final int start = OmeroTableColumn.sliceStart(from,
+					this.values.length);
+			final int end = Math.min(to, this.values.length);
+			System.arraycopy(this.values, start, slice, 0, end - start);
+			return new LongColumn(this.getName(), "", slice);
+		}
+	}
+
+	public static class DoubleData extends OmeroTableColumn {
+		private final double[] values;
+
+		public DoubleData(final String name, final double[] values) {
+			super(name);
+			this.values = values;
+		}
+
+		public double[] getValues() {
+			return this.values;
+		}
+
+		@Override
+		public int size() {
+			return this.values.length;
+		}
+
+		@Override
+		public Class<?> getType() {
+			return Double.class;
+		}
+
+		@Override
+		public String getValueAsString(final int row) {
+			return Double.toString(this.values[row]);
+		}
+
+		@Override
+		public Column toGridColumn(final int from, final int to) {
+			final double[] slice = new double[to - from];
+			final int start = OmeroTableColumn.sliceStart(from,
+					this.values.length);
+			final int end = Math.min(to, this.values.length);
+			System.arraycopy(this.values, start, slice, 0, end - start);
+			return new DoubleColumn(this.getName(), "", slice);
+		}
+	}
+
+	public static class BooleanData extends OmeroTableColumn {
+		private final boolean[] values;
+
+		public BooleanData(final String name, final boolean[] values) {
+			super(name);
+			this.values = values;
+		}
+
+		public boolean[] getValues() {
+			return this.values;
+		}
+
+		@Override
+		public int size() {
+			return this.values.length;
+		}
+
+		@Override
+		public Class<?> getType() {
+			return Boolean.class;
+		}
+
+		@Override
+		public String getValueAsString(final int row) {
+			return Boolean.toString(this.values[row]);
+		}
+
+		@Override
+		public Column toGridColumn(final int from, final int to) {
+			final boolean[] slice = new boolean[to - from];
+			final int start = OmeroTableColumn.sliceStart(from,
+					this.values.length);
+			final int end = Math.min(to, this.values.length);
+			System.arraycopy(this.values, start, slice, 0, end - start);
+			return new BoolColumn(this.getName(), "", slice);
+		}
+	}
+
+	public static class StringData extends OmeroTableColumn {
+		private final int[] codes;
+		private final String[] dictionary;
+		private long width;
+
+		public StringData(final String name, final int[] codes,
+				final String[] dictionary) {
+			super(name);
+			this.codes = codes;
+			this.dictionary = dictionary;
+			this.width = 1;
+			for (final String value : dictionary) {
+				this.width = Math.max(this.width,
+						value.getBytes(StandardCharsets.UTF_8).length);
+			}
+		}
+
+		public static StringData encode(final String name,
+				final String[] values) {
+			final Map<String, Integer> index = new LinkedHashMap<String, Integer>();
+			final int[] codes = new int[values.length];
+			for (int i = 0; i < values.length; i++) {
+				final String value = values[i] == null ? "" : values[i];
+				Integer code = index.get(value);
+				if (code == null) {
+					code = index.size();
+					index.put(value, code);
+				}
+				codes[i] = code;
+			}
+			return new StringData(name, codes,
+					index.keySet().toArray(new String[index.size()]));
+		}
+
+		public int[] getCodes() {
+			return this.codes;
+		}
+
+		public String[] getDictionary() {
+			return this.dictionary;
+		}
+
+		public long getWidth() {
+			return this.width;
+		}
+
+		public void setWidth(final long width) {
+			this.width = width;
+		}
+
+		@Override
+		public int size() {
+			return this.codes.length;
+		}
+
+		@Override
+		public Class<?> getType() {
+			return String.class;
+		}
+
+		@Override
+		public String getValueAsString(final int row) {
+			return this.dictionary[this.codes[row]];
+		}
+
+		@Override
+		public Column toGridColumn(final int from, final int to) {
+			final String[] values = new String[to - from];
+			for (int row = from; row < to; row++) {
+				values[row - from] = row < this.codes.length
+						? this.dictionary[this.codes[row]] : "";
+			}
+			return new StringColumn(this.getName(), "", this.width, values);
+		}
+	}
+
+	// Boxed lists of the original writeDataTableTo* methods
+	static class ListData extends OmeroTableColumn {
+		private final List<? extends Object> values;
+		private long width;
+
+		ListData(final String name, final List<? extends Object> values) {
+			super(name);
+			this.values = values;
+			this.width = 0;
+		}
+
+		@Override
+		public int size() {
+			return this.values.size();
+		}
+
+		@Override
+		public Class<?> getType() {
+			// An empty list has no element to take the type from
+			if (this.values.isEmpty())
+				return String.class;
+			return this.values.get(0).getClass();
+		}
+
+		@Override
+		public String getValueAsString(final int row) {
+			return String.valueOf(this.values.get(row));
+		}
+
+		@Override
+		public Column toGridColumn(final int from, final int to) {
+			final int end = Math.min(to, this.values.size());
+			final Class<?> type = this.getType();
+			if (Long.class.equals(type)) {
+				final long[] slice = new long[to - from];
+				for (int row = from; row < end; row++) {
+					slice[row - from] = (Long) this.values.get(row);
+				}
+				return new LongColumn(this.getName(), "", slice);
+			}
+			if (Double.class.equals(type)) {
+				final double[] slice = new double[to - from];
+				for (int row = from; row < end; row++) {
+					slice[row - from] = (Double) this.values.get(row);
+				}
+				return new DoubleColumn(this.getName(), "", slice);
+			}
+			if (Boolean.class.equals(type)) {
+				final boolean[] slice = new boolean[to - from];
+				for (int row = from; row < end; row++) {
+					slice[row - from] = (Boolean) this.values.get(row);
+				}
+				return new BoolColumn(this.getName(), "", slice);
+			}
+			if (this.width == 0) {
+				this.width = 1;
+				for (final Object value : this.values) {
+					this.width = Math.max(this.width, String.valueOf(value)
+							.getBytes(StandardCharsets.UTF_8).length);
+				}
+			}
+			final String[] slice = new String[to - from];
+			for (int row = from; row < to; row++) {
+				slice[row - from] = row < end
+						? String.valueOf(this.values.get(row)) : "";
+			}
+			return new StringColumn(this.getName(), "", this.width, slice);
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import omero.ServerError;
+import omero.grid.BoolColumn;
+import omero.grid.Column;
+import omero.grid.Data;
+import omero.grid.DoubleColumn;
+import omero.grid.FileColumn;
+import omero.grid.ImageColumn;
+import omero.grid.LongColumn;
+import omero.grid.PlateColumn;
+import omero.grid.RoiColumn;
+import omero.grid.StringColumn;
+import omero.grid.TablePrx;
+import omero.grid.WellColumn;
+
+// Object ID columns are read as long columns
+public class OmeroTableReader implements Closeable {
+	private final TablePrx table;
+	private final int pageRows;
+	private final OmeroWriterMetrics metrics;
+	private final long fileId;
+	private final long rowCount;
+	private final List<String> columnNames;
+	private long[] selected;
+	private long position;
+
+	OmeroTableReader(final TablePrx table, final int pageRows,
+			final OmeroWriterMetrics metrics) throws ServerError {
+		this.table = table;
+		this.pageRows = pageRows;
+		this.metrics = metrics;
+		this.fileId = table.getOriginalFile().getId().getValue();
+		this.rowCount = table.getNumberOfRows();
+		this.columnNames = new ArrayList<String>();
+		for (final Column header : table.getHeaders()) {
+			this.columnNames.add(header.name);
+		}
+		this.selected = new long[this.columnNames.size()];
+		for (int i = 0; i < this.selected.length; i++) {
+			this.selected[i] = i;
+		}
+		this.position = 0;
+	}
+
+	public long getFileId() {
+		return this.fileId;
+	}
+
+	public long getRowCount() {
+		return this.rowCount;
+	}
+
+	public List<String> getColumnNames() {
+		return this.columnNames;
+	}
+
+	public void setColumns(final String... names) {
+		final long[] indexes = new long[names.length];
+		for (int i = 0; i < names.length; i++) {
+			final int index = this.columnNames.indexOf(names[i]);
+			if (index < 0)
+				throw new IllegalArgumentException(
+						"No column " + names[i] + " in table " + this.fileId);
+			indexes[i] = index;
+		}
+		this.selected = indexes;
+	}
+
+	public boolean hasNext() {
+		return this.position < this.rowCount;
+	}
+
+	// An empty table once every row was read
+	public OmeroTableBuilder next() throws ServerError {
+		final long start = this.position;
+		final long stop = Math.min(this.rowCount, start + this.pageRows);
+		this.position = stop;
+		return this.read(start, stop);
+	}
+
+	public OmeroTableBuilder read(final long start, final long stop)
+			throws ServerError {
+		final OmeroTableBuilder rows = new OmeroTableBuilder();
+		if (start >= stop)
+			return rows;
+		final long begin = System.nanoTime();
+		final Data data;
+		try {
+			data = this.table.read(this.selected, start, stop);
+		} catch (final ServerError ex) {
+			this.metrics.recordError(OmeroWriterMetrics.TABLE_READ);
+			throw ex;
+		}
+		this.metrics.recordLatency(OmeroWriterMetrics.TABLE_READ,
+				System.nanoTime() - begin);
+		this.metrics.addRows(OmeroWriterMetrics.TABLE_READ, stop - start);
+		for (final Column column : data.columns) {
+			rows.addColumn(OmeroTableReader.toTableColumn(column));
+		}
+		return rows;
+	}
+
+	private static OmeroTableColumn toTableColumn(final Column column) {
+		if (column instanceof LongColumn)
+			return new OmeroTableColumn.LongData(column.name,
+					((LongColumn) column).values);
+		if (column instanceof DoubleColumn)
+			return new OmeroTableColumn.DoubleData(column.name,
+					((DoubleColumn) column).values);
+		if (column instanceof BoolColumn)
+			return new OmeroTableColumn.BooleanData(column.name,
+					((BoolColumn) column).values);
+		if (column instanceof StringColumn)
+			return OmeroTableColumn.StringData.encode(column.name,
+					((StringColumn) column).values);
+		if (column instanceof ImageColumn)
+			return new OmeroTableColumn.LongData(column.name,
+					((ImageColumn) column).values);
+		if (column instanceof RoiColumn)
+			return new OmeroTableColumn.LongData(column.name,
+					((RoiColumn) column).values);
+		if (column instanceof WellColumn)
+			return new OmeroTableColumn.LongData(column.name,
+					((WellColumn) column).values);
+		if (column instanceof PlateColumn)
+			return new OmeroTableColumn.LongData(column.name,
+					((PlateColumn) column).values);
+		if (column instanceof FileColumn)
+			return new OmeroTableColumn.LongData(column.name,
+					((FileColumn) column).values);
+		throw new IllegalArgumentException("Unsupported column type "
+				+ column.getClass().getSimpleName() + " for " + column.name);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.table.close();
+		} catch (final ServerError ex) {
+			throw new IOException("Cannot close table " + this.fileId, ex);
+		}
+	}
+}
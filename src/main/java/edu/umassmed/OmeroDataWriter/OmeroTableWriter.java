@@ -0,0 +1,65 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import omero.ServerError;
+import omero.grid.Column;
+import omero.grid.TablePrx;
+
+// String column widths are fixed on creation, see StringData.setWidth
+public class OmeroTableWriter implements Closeable {
+	private final TablePrx table;
+	private final int batchRows;
+	private final OmeroWriterMetrics metrics;
+	private final long fileId;
+	private long rowCount;
+
+	OmeroTableWriter(final TablePrx table, final int batchRows,
+			final OmeroWriterMetrics metrics) throws ServerError {
+		this.table = table;
+		this.batchRows = batchRows;
+		this.metrics = metrics;
+		this.fileId = table.getOriginalFile().getId().getValue();
+		this.rowCount = table.getNumberOfRows();
+	}
+
+	public long getFileId() {
+		return this.fileId;
+	}
+
+	public long getRowCount() {
+		return this.rowCount;
+	}
+
+	public void append(final OmeroTableBuilder rows) throws ServerError {
+		final int size = rows.getRowCount();
+		for (int from = 0; from < size; from += this.batchRows) {
+			final int to = Math.min(size, from + this.batchRows);
+			final long start = System.nanoTime();
+			final Column[] columns = rows.toGridColumns(from, to);
+			final long marshalled = System.nanoTime();
+			this.metrics.recordLatency(OmeroWriterMetrics.TABLE_MARSHAL,
+					marshalled - start);
+			try {
+				this.table.addData(columns);
+			} catch (final ServerError ex) {
+				this.metrics.recordError(OmeroWriterMetrics.TABLE_ADD_DATA);
+				throw ex;
+			}
+			this.metrics.recordLatency(OmeroWriterMetrics.TABLE_ADD_DATA,
+					System.nanoTime() - marshalled);
+			this.metrics.addRows(OmeroWriterMetrics.TABLE_ADD_DATA, to - from);
+			this.rowCount += to - from;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.table.close();
+		} catch (final ServerError ex) {
+			throw new IOException("Cannot close table " + this.fileId, ex);
+		}
+	}
+}
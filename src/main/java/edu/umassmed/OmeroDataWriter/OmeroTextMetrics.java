@@ -0,0 +1,77 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+public class OmeroTextMetrics implements OmeroWriterMetrics {
+	private final ConcurrentMap<String, OmeroOperationStats> stats;
+
+	public OmeroTextMetrics() {
+		this.stats = new ConcurrentHashMap<String, OmeroOperationStats>();
+	}
+
+	public OmeroOperationStats getStats(final String operation) {
+		OmeroOperationStats operationStats = this.stats.get(operation);
+		if (operationStats == null) {
+			final OmeroOperationStats newStats = new OmeroOperationStats(
+					operation);
+			operationStats = this.stats.putIfAbsent(operation, newStats);
+			if (operationStats == null) {
+				operationStats = newStats;
+				this.statsCreated(newStats);
+			}
+		}
+		return operationStats;
+	}
+
+	public List<OmeroOperationStats> getAllStats() {
+		final List<OmeroOperationStats> all = new ArrayList<OmeroOperationStats>(
+				this.stats.values());
+		Collections.sort(all,
+				(a, b) -> a.getOperation().compareTo(b.getOperation()));
+		return all;
+	}
+
+	protected void statsCreated(final OmeroOperationStats operationStats) {
+		// hook for the subclasses that publish the statistics
+	}
+
+	@Override
+	public void recordLatency(final String operation, final long nanos) {
+		this.getStats(operation).recordLatency(nanos);
+	}
+
+	@Override
+	public void recordError(final String operation) {
+		this.getStats(operation).recordError();
+	}
+
+	@Override
+	public void addBytes(final String operation, final long bytes) {
+		this.getStats(operation).addBytes(bytes);
+	}
+
+	@Override
+	public void addRows(final String operation, final long rows) {
+		this.getStats(operation).addRows(rows);
+	}
+
+	public void dump(final PrintStream out) {
+		for (final OmeroOperationStats operationStats : this.getAllStats()) {
+			out.println(operationStats);
+		}
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (final OmeroOperationStats operationStats : this.getAllStats()) {
+			sb.append(operationStats).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,126 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import omero.ServerError;
+import omero.api.RawFileStorePrx;
+import omero.gateway.Gateway;
+import omero.gateway.SecurityContext;
+import omero.gateway.exception.DSOutOfServiceException;
+
+// Concurrent uploads are bounded by the raw file service pool size
+public class OmeroUploadEngine {
+	private final Gateway gateway;
+	private final int maxServices;
+	private final Map<Long, ServicePool> pools;
+	private final ExecutorService executor;
+
+	public OmeroUploadEngine(final Gateway gateway, final int maxServices) {
+		this.gateway = gateway;
+		this.maxServices = maxServices;
+		this.pools = new ConcurrentHashMap<Long, ServicePool>();
+		this.executor = OmeroUploadEngine.createExecutor(maxServices);
+	}
+
+	private static ExecutorService createExecutor(final int workers) {
+		try {
+			final Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (final Exception ex) {
+			return Executors.newFixedThreadPool(workers);
+		}
+	}
+
+	public <T> Future<T> submit(final Callable<T> task) {
+		return this.executor.submit(task);
+	}
+
+	public RawFileStorePrx acquire(final SecurityContext ctx)
+			throws DSOutOfServiceException, InterruptedIOException {
+		final ServicePool pool = this.getPool(ctx);
+		try {
+			pool.permits.acquire();
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for a raw file service");
+		}
+		final RawFileStorePrx rawFileStore = pool.idle.poll();
+		if (rawFileStore != null)
+			return rawFileStore;
+		try {
+			return this.gateway.getRawFileService(ctx);
+		} catch (final DSOutOfServiceException ex) {
+			pool.permits.release();
+			throw ex;
+		} catch (final RuntimeException ex) {
+			pool.permits.release();
+			throw ex;
+		}
+	}
+
+	public void release(final SecurityContext ctx,
+			final RawFileStorePrx rawFileStore, final boolean reusable) {
+		final ServicePool pool = this.getPool(ctx);
+		if (reusable) {
+			pool.idle.offer(rawFileStore);
+		} else {
+			OmeroUploadEngine.closeQuietly(rawFileStore);
+		}
+		pool.permits.release();
+	}
+
+	public void shutdown() {
+		this.executor.shutdown();
+		for (final ServicePool pool : this.pools.values()) {
+			RawFileStorePrx rawFileStore;
+			while ((rawFileStore = pool.idle.poll()) != null) {
+				OmeroUploadEngine.closeQuietly(rawFileStore);
+			}
+		}
+		this.pools.clear();
+	}
+
+	private ServicePool getPool(final SecurityContext ctx) {
+		final Long groupId = ctx.getGroupID();
+		ServicePool pool = this.pools.get(groupId);
+		if (pool == null) {
+			final ServicePool newPool = new ServicePool(this.maxServices);
+			pool = this.pools.putIfAbsent(groupId, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		return pool;
+	}
+
+	private static void closeQuietly(final RawFileStorePrx rawFileStore) {
+		try {
+			rawFileStore.close();
+		} catch (final ServerError ex) {
+			// the service is discarded anyway
+		} catch (final RuntimeException ex) {
+			// the service is discarded anyway
+		}
+	}
+
+	private static final class ServicePool {
+		private final Semaphore permits;
+		private final ConcurrentLinkedQueue<RawFileStorePrx> idle;
+
+		private ServicePool(final int maxServices) {
+			this.permits = new Semaphore(maxServices);
+			this.idle = new ConcurrentLinkedQueue<RawFileStorePrx>();
+		}
+	}
+}
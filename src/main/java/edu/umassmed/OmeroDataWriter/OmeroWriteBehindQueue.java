@@ -0,0 +1,403 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import omero.gateway.model.DataObject;
+import omero.gateway.model.DatasetData;
+import omero.gateway.model.ImageData;
+import omero.gateway.model.ProjectData;
+import omero.model.FileAnnotation;
+
+// CALLER_RUNS writes never overlap a queued write but may overtake the
+// writes still queued
+public class OmeroWriteBehindQueue {
+	public enum OverflowPolicy {
+		// Wait for room in the queue
+		BLOCK,
+		// Fail the returned future
+		REJECT,
+		// Run on the calling thread, ahead of the queued writes
+		CALLER_RUNS
+	}
+
+	private final OmeroDataWriter writer;
+	private final OverflowPolicy policy;
+	private final BlockingQueue<Operation<?>> queue;
+	private final Thread flusher;
+	private final Object writeLock;
+	private final Object stateLock;
+	private boolean closed;
+	private Operation<Void> closeMarker;
+
+	public OmeroWriteBehindQueue(final OmeroDataWriter writer,
+			final int capacity, final OverflowPolicy policy) {
+		this.writer = writer;
+		this.policy = policy;
+		this.queue = new ArrayBlockingQueue<Operation<?>>(capacity);
+		this.closed = false;
+		this.writeLock = new Object();
+		this.stateLock = new Object();
+		this.closeMarker = null;
+		this.flusher = new Thread(() -> this.run(), "omero-write-behind");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	public CompletableFuture<Long> writeDataToProject(final Long id,
+			final String description, final Map<String, String> keyValueData) {
+		return this.enqueue(new MapOperation(ProjectData.class, id,
+				description, keyValueData));
+	}
+
+	public CompletableFuture<Long> writeDataToDataset(final Long id,
+			final String description, final Map<String, String> keyValueData) {
+		return this.enqueue(new MapOperation(DatasetData.class, id,
+				description, keyValueData));
+	}
+
+	public CompletableFuture<Long> writeDataToImage(final Long id,
+			final String description, final Map<String, String> keyValueData) {
+		return this.enqueue(new MapOperation(ImageData.class, id, description,
+				keyValueData));
+	}
+
+	public CompletableFuture<FileAnnotation> writeFileAnnotationToImage(
+			final Long id, final File f, final String ns,
+			final String mimetype) {
+		return this.enqueue(new Operation<FileAnnotation>() {
+			@Override
+			FileAnnotation execute(final OmeroDataWriter writer)
+					throws Exception {
+				return writer.writeFileAnnotationToImage(id, f, ns, mimetype);
+			}
+		});
+	}
+
+	public CompletableFuture<Void> writeDataTableToProject(final Long id,
+			final String name, final String desc,
+			final OmeroTableBuilder table, final boolean saveAsCSV) {
+		return this.enqueue(new Operation<Void>() {
+			@Override
+			Void execute(final OmeroDataWriter writer) throws Exception {
+				writer.writeDataTableToProject(id, name, desc, table,
+						saveAsCSV);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> writeDataTableToDataset(final Long id,
+			final String name, final String desc,
+			final OmeroTableBuilder table, final boolean saveAsCSV) {
+		return this.enqueue(new Operation<Void>() {
+			@Override
+			Void execute(final OmeroDataWriter writer) throws Exception {
+				writer.writeDataTableToDataset(id, name, desc, table,
+						saveAsCSV);
+				return null;
+			}
+		});
+	}
+
+	public CompletableFuture<Void> writeDataTableToImage(final Long id,
+			final String name, final String desc,
+			final OmeroTableBuilder table, final boolean saveAsCSV) {
+		return this.enqueue(new Operation<Void>() {
+			@Override
+			Void execute(final OmeroDataWriter writer) throws Exception {
+				writer.writeDataTableToImage(id, name, desc, table, saveAsCSV);
+				return null;
+			}
+		});
+	}
+
+	public int getPendingCount() {
+		return this.queue.size();
+	}
+
+	// Once closed, waits for the queue to be drained
+	public void flush() throws InterruptedException {
+		final Operation<Void> marker;
+		synchronized (this.stateLock) {
+			marker = this.closed ? this.closeMarker : this.putMarker();
+		}
+		OmeroWriteBehindQueue.await(marker);
+	}
+
+	public void close() throws InterruptedException {
+		final Operation<Void> marker;
+		synchronized (this.stateLock) {
+			if (this.closed)
+				return;
+			// nothing can be queued behind the last marker
+			marker = this.putMarker();
+			this.closed = true;
+			this.closeMarker = marker;
+		}
+		OmeroWriteBehindQueue.await(marker);
+		this.flusher.interrupt();
+		this.flusher.join();
+	}
+
+	private Operation<Void> putMarker() throws InterruptedException {
+		final Operation<Void> marker = new Operation<Void>() {
+			@Override
+			Void execute(final OmeroDataWriter writer) {
+				return null;
+			}
+		};
+		this.queue.put(marker);
+		return marker;
+	}
+
+	private static void await(final Operation<Void> marker) {
+		try {
+			marker.future.join();
+		} catch (final CompletionException ex) {
+			// the marker only fails when the flusher has stopped
+		}
+	}
+
+	private <T> CompletableFuture<T> enqueue(final Operation<T> op) {
+		synchronized (this.stateLock) {
+			if (this.closed) {
+				op.future.completeExceptionally(
+						new RejectedExecutionException("The queue is closed"));
+				return op.future;
+			}
+			switch (this.policy) {
+				case BLOCK:
+					try {
+						this.queue.put(op);
+					} catch (final InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						op.future.completeExceptionally(ex);
+					}
+					return op.future;
+				case REJECT:
+					if (!this.queue.offer(op)) {
+						op.future.completeExceptionally(
+								new RejectedExecutionException(
+										"The queue is full"));
+					}
+					return op.future;
+				default:
+					if (this.queue.offer(op))
+						return op.future;
+			}
+		}
+		// the writer is never used by two threads at once
+		synchronized (this.writeLock) {
+			op.run(this.writer);
+		}
+		return op.future;
+	}
+
+	private void run() {
+		final List<Operation<?>> batch = new ArrayList<Operation<?>>();
+		while (true) {
+			try {
+				batch.add(this.queue.take());
+			} catch (final InterruptedException ex) {
+				// close() only interrupts once the queue has been drained,
+				// anything left could never be taken
+				final RejectedExecutionException rejected = new RejectedExecutionException(
+						"The queue is closed");
+				Operation<?> op;
+				while ((op = this.queue.poll()) != null) {
+					OmeroWriteBehindQueue.fail(op, rejected);
+				}
+				return;
+			}
+			this.queue.drainTo(batch, this.writer.getBatchSize() - 1);
+			try {
+				synchronized (this.writeLock) {
+					this.process(batch);
+				}
+			} catch (final Throwable ex) {
+				// the futures already completed are left as they are
+				for (final Operation<?> op : batch) {
+					OmeroWriteBehindQueue.fail(op, ex);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	private void process(final List<Operation<?>> batch) {
+		// Group runs of consecutive map writes, the other writes are
+		// barriers so that the order seen by the server is the queue order
+		final List<MapOperation> maps = new ArrayList<MapOperation>();
+		for (final Operation<?> op : batch) {
+			if (op instanceof MapOperation) {
+				maps.add((MapOperation) op);
+				continue;
+			}
+			this.writeMaps(maps);
+			maps.clear();
+			op.run(this.writer);
+		}
+		this.writeMaps(maps);
+	}
+
+	// Nothing may escape to the flusher thread, its death would leave every
+	// queued future and flush() waiting forever
+	private static void fail(final Operation<?> op, final Throwable ex) {
+		op.future.completeExceptionally(ex);
+	}
+
+	private void writeMaps(final List<MapOperation> maps) {
+		final Map<GroupKey, List<MapOperation>> groups = new LinkedHashMap<GroupKey, List<MapOperation>>();
+		for (final MapOperation op : maps) {
+			final GroupKey key = new GroupKey(op.type, op.description);
+			List<MapOperation> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<MapOperation>();
+				groups.put(key, group);
+			}
+			group.add(op);
+		}
+		for (final List<MapOperation> group : groups.values()) {
+			// The batched writers take one map per target, a target written
+			// twice goes to the next round
+			List<MapOperation> pending = group;
+			while (!pending.isEmpty()) {
+				final Map<Long, MapOperation> round = new LinkedHashMap<Long, MapOperation>();
+				final List<MapOperation> next = new ArrayList<MapOperation>();
+				for (final MapOperation op : pending) {
+					if (round.containsKey(op.id)) {
+						next.add(op);
+					} else {
+						round.put(op.id, op);
+					}
+				}
+				try {
+					this.writeMapRound(round);
+				} catch (final Throwable ex) {
+					for (final MapOperation op : round.values()) {
+						OmeroWriteBehindQueue.fail(op, ex);
+					}
+				}
+				pending = next;
+			}
+		}
+	}
+
+	private void writeMapRound(final Map<Long, MapOperation> round) {
+		final MapOperation first = round.values().iterator().next();
+		final Map<Long, Map<String, String>> keyValueData = new LinkedHashMap<Long, Map<String, String>>();
+		for (final MapOperation op : round.values()) {
+			keyValueData.put(op.id, op.keyValueData);
+		}
+		final OmeroBatchResult result;
+		try {
+			result = OmeroWriteBehindQueue.writeMaps(this.writer, first.type,
+					first.description, keyValueData);
+		} catch (final Exception ex) {
+			for (final MapOperation op : round.values()) {
+				op.future.completeExceptionally(ex);
+			}
+			return;
+		}
+		final Map<Long, Long> written = result.getWritten();
+		final Map<Long, Exception> failures = result.getFailures();
+		for (final MapOperation op : round.values()) {
+			if (written.containsKey(op.id)) {
+				op.future.complete(written.get(op.id));
+			} else if (failures.containsKey(op.id)) {
+				op.future.completeExceptionally(failures.get(op.id));
+			} else {
+				op.future.completeExceptionally(
+						new IllegalStateException("No result for " + op.id));
+			}
+		}
+	}
+
+	private static OmeroBatchResult writeMaps(final OmeroDataWriter writer,
+			final Class<? extends DataObject> type, final String description,
+			final Map<Long, Map<String, String>> keyValueData)
+			throws Exception {
+		if (type == ProjectData.class)
+			return writer.writeDataToProjects(description, keyValueData);
+		if (type == DatasetData.class)
+			return writer.writeDataToDatasets(description, keyValueData);
+		return writer.writeDataToImages(description, keyValueData);
+	}
+
+	private abstract static class Operation<T> {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		abstract T execute(OmeroDataWriter writer) throws Exception;
+
+		void run(final OmeroDataWriter writer) {
+			try {
+				this.future.complete(this.execute(writer));
+			} catch (final Throwable ex) {
+				OmeroWriteBehindQueue.fail(this, ex);
+			}
+		}
+	}
+
+	private static final class GroupKey {
+		private final Class<? extends DataObject> type;
+		private final String description;
+
+		private GroupKey(final Class<? extends DataObject> type,
+				final String description) {
+			this.type = type;
+			this.description = description;
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (!(obj instanceof GroupKey))
+				return false;
+			final GroupKey other = (GroupKey) obj;
+			return this.type.equals(other.type)
+					&& Objects.equals(this.description, other.description);
+		}
+
+		@Override
+		public int hashCode() {
+			return (31 * this.type.hashCode())
+					+ Objects.hashCode(this.description);
+		}
+	}
+
+	private static final class MapOperation extends Operation<Long> {
+		private final Class<? extends DataObject> type;
+		private final Long id;
+		private final String description;
+		private final Map<String, String> keyValueData;
+
+		private MapOperation(final Class<? extends DataObject> type,
+				final Long id, final String description,
+				final Map<String, String> keyValueData) {
+			this.type = type;
+			this.id = id;
+			this.description = description;
+			this.keyValueData = keyValueData;
+		}
+
+		@Override
+		Long execute(final OmeroDataWriter writer) throws Exception {
+			final Map<Long, Map<String, String>> keyValue = new LinkedHashMap<Long, Map<String, String>>();
+			keyValue.put(this.id, this.keyValueData);
+			final OmeroBatchResult result = OmeroWriteBehindQueue.writeMaps(
+					writer, this.type, this.description, keyValue);
+			if (!result.isSuccessful())
+				throw result.getFailures().get(this.id);
+			return result.getWritten().get(this.id);
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package edu.umassmed.OmeroDataWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Operations without an end record may have left objects behind, a torn
+// last record is dropped on open
+public class OmeroWriteJournal implements Closeable {
+	private static final String BEGIN = "begin";
+	private static final String END = "end";
+
+	private final File file;
+	private final boolean sync;
+	private final Map<Long, Entry> pending;
+	private FileChannel channel;
+	private long nextId;
+
+	public OmeroWriteJournal(final File file) throws IOException {
+		this(file, true);
+	}
+
+	public OmeroWriteJournal(final File file, final boolean sync)
+			throws IOException {
+		this.file = file;
+		this.sync = sync;
+		this.pending = new LinkedHashMap<Long, Entry>();
+		this.nextId = 1;
+		this.load();
+		this.channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+	}
+
+	private void load() throws IOException {
+		if (!this.file.isFile())
+			return;
+		final byte[] bytes = Files.readAllBytes(this.file.toPath());
+		int end = bytes.length;
+		while ((end > 0) && (bytes[end - 1] != '\n')) {
+			end--;
+		}
+		if (end < bytes.length) {
+			// the last record was cut short by a crash
+			try (FileChannel truncate = FileChannel.open(this.file.toPath(),
+					StandardOpenOption.WRITE)) {
+				truncate.truncate(end);
+			}
+		}
+		final String text = new String(bytes, 0, end, StandardCharsets.UTF_8);
+		for (final String line : text.split("\n")) {
+			if (line.isEmpty()) {
+				continue;
+			}
+			final String[] fields = line.split("\t", -1);
+			final long id = Long.parseLong(fields[0]);
+			this.nextId = Math.max(this.nextId, id + 1);
+			if (OmeroWriteJournal.BEGIN.equals(fields[1])) {
+				final String[] args = new String[fields.length - 3];
+				for (int i = 0; i < args.length; i++) {
+					args[i] = OmeroWriteJournal.unescape(fields[i + 3]);
+				}
+				this.pending.put(id, new Entry(id, fields[2], args));
+			} else if (OmeroWriteJournal.END.equals(fields[1])) {
+				this.pending.remove(id);
+			} else {
+				final Entry entry = this.pending.get(id);
+				if (entry != null) {
+					entry.objects.put(fields[1], Long.parseLong(fields[2]));
+				}
+			}
+		}
+	}
+
+	public synchronized long begin(final String kind, final String... args)
+			throws IOException {
+		final long id = this.nextId++;
+		final StringBuilder record = new StringBuilder();
+		record.append(id).append('\t').append(OmeroWriteJournal.BEGIN)
+				.append('\t').append(kind);
+		for (final String arg : args) {
+			record.append('\t').append(OmeroWriteJournal.escape(arg));
+		}
+		this.append(record);
+		this.pending.put(id, new Entry(id, kind, args));
+		return id;
+	}
+
+	public synchronized void record(final long id, final String stage,
+			final long objectId) throws IOException {
+		this.append(new StringBuilder().append(id).append('\t').append(stage)
+				.append('\t').append(objectId));
+		final Entry entry = this.pending.get(id);
+		if (entry != null) {
+			entry.objects.put(stage, objectId);
+		}
+	}
+
+	public synchronized void complete(final long id) throws IOException {
+		this.append(new StringBuilder().append(id).append('\t')
+				.append(OmeroWriteJournal.END));
+		this.pending.remove(id);
+	}
+
+	public synchronized List<Entry> getPending() {
+		return Collections
+				.unmodifiableList(new ArrayList<Entry>(this.pending.values()));
+	}
+
+	public synchronized void compact() throws IOException {
+		final File tmp = new File(this.file.getPath() + ".tmp");
+		final StringBuilder records = new StringBuilder();
+		for (final Entry entry : this.pending.values()) {
+			records.append(entry.id).append('\t')
+					.append(OmeroWriteJournal.BEGIN).append('\t')
+					.append(entry.kind);
+			for (final String arg : entry.args) {
+				records.append('\t').append(OmeroWriteJournal.escape(arg));
+			}
+			records.append('\n');
+			for (final Map.Entry<String, Long> object : entry.objects
+					.entrySet()) {
+				records.append(entry.id).append('\t').append(object.getKey())
+						.append('\t').append(object.getValue()).append('\n');
+			}
+		}
+		try (FileChannel out = FileChannel.open(tmp.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer buffer = ByteBuffer
+					.wrap(records.toString().getBytes(StandardCharsets.UTF_8));
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			// the records must be on disk before the rename publishes them
+			out.force(true);
+		}
+		this.channel.close();
+		try {
+			Files.move(tmp.toPath(), this.file.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			this.syncDirectory();
+		} finally {
+			this.channel = FileChannel.open(this.file.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.APPEND);
+		}
+	}
+
+	private void syncDirectory() {
+		// the rename itself is only durable once the directory is forced,
+		// not every platform can open a directory for that
+		final File dir = this.file.getAbsoluteFile().getParentFile();
+		try (FileChannel channel = FileChannel.open(dir.toPath(),
+				StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (final IOException ex) {
+			// nothing more can be done here
+		}
+	}
+
+	private void append(final StringBuilder record) throws IOException {
+		record.append('\n');
+		final ByteBuffer buffer = ByteBuffer
+				.wrap(record.toString().getBytes(StandardCharsets.UTF_8));
+		while (buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+		if (this.sync) {
+			this.channel.force(false);
+		}
+	}
+
+	private static String escape(final String value) {
+		if (value == null)
+			return "\\0";
+		return value.replace("\\", "\\\\").replace("\t", "\\t")
+				.replace("\n", "\\n");
+	}
+
+	private static String unescape(final String value) {
+		if ("\\0".equals(value))
+			return null;
+		final StringBuilder sb = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if ((c != '\\') || (i == (value.length() - 1))) {
+				sb.append(c);
+				continue;
+			}
+			final char next = value.charAt(++i);
+			sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		this.channel.close();
+	}
+
+	public static final class Entry {
+		private final long id;
+		private final String kind;
+		private final String[] args;
+		private final Map<String, Long> objects;
+
+		private Entry(final long id, final String kind, final String[] args) {
+			this.id = id;
+			this.kind = kind;
+			this.args = Arrays.copyOf(args, args.length);
+			this.objects = new LinkedHashMap<String, Long>();
+		}
+
+		public long getId() {
+			return this.id;
+		}
+
+		public String getKind() {
+			return this.kind;
+		}
+
+		public String getArg(final int index) {
+			return this.args[index];
+		}
+
+		public Long getObjectId(final String stage) {
+			return this.objects.get(stage);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package edu.umassmed.OmeroDataWriter;
+
+// Called concurrently from every thread using the writer, must not block
+public interface OmeroWriterMetrics {
+	String RETRIEVE_PROJECT = "retrieveProject";
+	String RETRIEVE_DATASET = "retrieveDataset";
+	String RETRIEVE_IMAGE = "retrieveImage";
+	String LIST_PROJECTS = "listProjects";
+	String LIST_IMAGES = "listImages";
+	String LOOKUP_BY_NAME = "lookupByName";
+	String ATTACH_ANNOTATION = "attachAnnotation";
+	String SAVE_OBJECT = "saveAndReturnObject";
+	String SAVE_ARRAY = "saveAndReturnArray";
+	String RAW_FILE_WRITE = "rawFileWrite";
+	String ADD_TABLE = "addTable";
+	String TABLE_MARSHAL = "tableMarshal";
+	String TABLE_ADD_DATA = "tableAddData";
+	String READ_ANNOTATIONS = "readAnnotations";
+	String FIND_TABLES = "findTables";
+	String TABLE_READ = "tableRead";
+
+	// Used when no metrics are set
+	OmeroWriterMetrics NONE = new OmeroWriterMetrics() {
+		@Override
+		public void recordLatency(final String operation, final long nanos) {
+			// nothing to record
+		}
+
+		@Override
+		public void recordError(final String operation) {
+			// nothing to record
+		}
+
+		@Override
+		public void addBytes(final String operation, final long bytes) {
+			// nothing to record
+		}
+
+		@Override
+		public void addRows(final String operation, final long rows) {
+			// nothing to record
+		}
+	};
+
+	void recordLatency(String operation, long nanos);
+
+	void recordError(String operation);
+
+	void addBytes(String operation, long bytes);
+
+	void addRows(String operation, long rows);
+}
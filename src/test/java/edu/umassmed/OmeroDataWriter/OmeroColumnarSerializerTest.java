@@ -0,0 +1,222 @@
+package edu.umassmed.OmeroDataWriter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OmeroColumnarSerializerTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ForkJoinPool pool = new ForkJoinPool(3);
+
+	private File write(final List<OmeroTableColumn> columns,
+			final int rowGroupRows) throws IOException {
+		final File file = this.folder.newFile();
+		try (OutputStream out = new FileOutputStream(file)) {
+			new OmeroColumnarSerializer(this.pool, rowGroupRows).write(columns,
+					out);
+		}
+		return file;
+	}
+
+	private void assertRoundTrip(final List<OmeroTableColumn> columns,
+			final int rowGroupRows) throws IOException {
+		final File file = this.write(columns, rowGroupRows);
+		int rows = 0;
+		final List<String> names = new ArrayList<String>();
+		for (final OmeroTableColumn column : columns) {
+			rows = Math.max(rows, column.size());
+			names.add(column.getName());
+		}
+		try (SeekableByteChannel channel = Files
+				.newByteChannel(file.toPath())) {
+			final OmeroColumnarReader reader = new OmeroColumnarReader(
+					channel);
+			assertEquals(rows, reader.getRowCount());
+			assertEquals(names, reader.getColumnNames());
+			// read in reverse so that every column is located on its own
+			for (int i = columns.size() - 1; i >= 0; i--) {
+				OmeroColumnarSerializerTest.assertSameColumn(columns.get(i),
+						reader.readColumn(columns.get(i).getName()));
+			}
+		}
+	}
+
+	private static void assertSameColumn(final OmeroTableColumn expected,
+			final OmeroTableColumn actual) {
+		final String name = expected.getName();
+		assertEquals(name, expected.getName(), actual.getName());
+		assertEquals(name, expected.size(), actual.size());
+		assertEquals(name, expected.getType(), actual.getType());
+		if (expected instanceof OmeroTableColumn.DoubleData) {
+			// NaN and -0.0 keep their exact bits
+			final double[] e = ((OmeroTableColumn.DoubleData) expected)
+					.getValues();
+			final double[] a = ((OmeroTableColumn.DoubleData) actual)
+					.getValues();
+			for (int y = 0; y < e.length; y++) {
+				assertEquals(name + " row " + y,
+						Double.doubleToRawLongBits(e[y]),
+						Double.doubleToRawLongBits(a[y]));
+			}
+			return;
+		}
+		for (int y = 0; y < expected.size(); y++) {
+			assertEquals(name + " row " + y, expected.getValueAsString(y),
+					actual.getValueAsString(y));
+		}
+	}
+
+	private static List<OmeroTableColumn> mixed(final int rows,
+			final long seed) {
+		final Random random = new Random(seed);
+		final long[] longs = new long[rows];
+		final double[] doubles = new double[rows];
+		final boolean[] booleans = new boolean[rows];
+		final String[] strings = new String[rows];
+		final long[] specialLongs = { Long.MIN_VALUE, Long.MAX_VALUE, 0, -1,
+				Long.MIN_VALUE, 1 };
+		final double[] specialDoubles = { Double.NaN, -0.0, 0.0,
+				Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+				Double.MIN_VALUE, Double.MAX_VALUE,
+				Double.longBitsToDouble(0x7ff8000000000123L) };
+		for (int y = 0; y < rows; y++) {
+			longs[y] = (y % 3) == 0 ? specialLongs[y % specialLongs.length]
+					: random.nextLong();
+			doubles[y] = (y % 2) == 0
+					? specialDoubles[y % specialDoubles.length]
+					: random.nextGaussian();
+			booleans[y] = random.nextBoolean();
+			strings[y] = (y % 4) == 0 ? "" : "vé" + random.nextInt(5);
+		}
+		return new OmeroTableBuilder().addLongColumn("Long", longs)
+				.addDoubleColumn("Double", doubles)
+				.addBooleanColumn("Boolean", booleans)
+				.addStringColumn("String 😀", strings).getColumns();
+	}
+
+	@Test
+	public void rowGroupBoundaries() throws IOException {
+		final int[] rowGroupRows = { 1, 2, 3, 7, 8, 9, 64 };
+		for (final int groupRows : rowGroupRows) {
+			for (final int rows : new int[] { 1, groupRows - 1, groupRows,
+					groupRows + 1, (3 * groupRows) + 2, 100 }) {
+				if (rows > 0) {
+					this.assertRoundTrip(
+							OmeroColumnarSerializerTest.mixed(rows, rows),
+							groupRows);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void manyRowGroupsInFlight() throws IOException {
+		this.assertRoundTrip(OmeroColumnarSerializerTest.mixed(20000, 1),
+				97);
+	}
+
+	@Test
+	public void raggedColumns() throws IOException {
+		final List<OmeroTableColumn> columns = new OmeroTableBuilder()
+				.addLongColumn("Long", new long[] { 5, -3, 8, 1, 2, 3, 4 })
+				.addDoubleColumn("Double", new double[] { -0.0, Double.NaN })
+				.addBooleanColumn("Boolean",
+						new boolean[] { true, false, true, true, false })
+				.addStringColumn("String", new String[] { "a", "b", "a" })
+				.getColumns();
+		for (final int groupRows : new int[] { 1, 2, 3, 4, 100 }) {
+			this.assertRoundTrip(columns, groupRows);
+		}
+	}
+
+	@Test
+	public void emptyColumns() throws IOException {
+		final List<OmeroTableColumn> columns = new OmeroTableBuilder()
+				.addLongColumn("Long", new long[0])
+				.addDoubleColumn("Double", new double[0])
+				.addBooleanColumn("Boolean", new boolean[0])
+				.addStringColumn("String", new String[0])
+				.addLongColumn("Filled", new long[] { 1, 2, 3 }).getColumns();
+		this.assertRoundTrip(columns, 2);
+		this.assertRoundTrip(columns.subList(0, 4), 2);
+		this.assertRoundTrip(Collections.<OmeroTableColumn> emptyList(), 2);
+	}
+
+	@Test
+	public void plainListColumns() throws IOException {
+		final List<String> names = Arrays.asList("Long", "Double", "Boolean",
+				"String", "Short", "Empty");
+		final List<List<? extends Object>> data = new ArrayList<List<? extends Object>>();
+		data.add(Arrays.asList(Long.MIN_VALUE, 0L, 42L, Long.MAX_VALUE, -7L));
+		data.add(Arrays.asList(1.5, Double.NaN, -0.0,
+				Double.NEGATIVE_INFINITY, 1e-300));
+		data.add(Arrays.asList(true, false, false, true, true));
+		data.add(Arrays.asList("x", "", "漢字", "x", "y"));
+		data.add(Arrays.asList(3L, 4L));
+		data.add(Collections.emptyList());
+		final List<OmeroTableColumn> columns = OmeroTableColumn.of(names,
+				data);
+		for (final int groupRows : new int[] { 1, 2, 4, 5, 6 }) {
+			this.assertRoundTrip(columns, groupRows);
+		}
+		try (SeekableByteChannel channel = Files
+				.newByteChannel(this.write(columns, 2).toPath())) {
+			final OmeroColumnarReader reader = new OmeroColumnarReader(
+					channel);
+			assertTrue(reader
+					.readColumn("Long") instanceof OmeroTableColumn.LongData);
+			assertTrue(reader.readColumn(
+					"Double") instanceof OmeroTableColumn.DoubleData);
+			assertTrue(reader.readColumn(
+					"Boolean") instanceof OmeroTableColumn.BooleanData);
+			assertTrue(reader.readColumn(
+					"String") instanceof OmeroTableColumn.StringData);
+		}
+	}
+
+	@Test
+	public void readSelectedColumns() throws IOException {
+		final List<OmeroTableColumn> columns = OmeroColumnarSerializerTest
+				.mixed(50, 3);
+		try (SeekableByteChannel channel = Files
+				.newByteChannel(this.write(columns, 16).toPath())) {
+			final OmeroTableBuilder table = new OmeroColumnarReader(channel)
+					.read(Arrays.asList("Boolean", "Long"));
+			assertEquals(Arrays.asList("Boolean", "Long"),
+					table.getColumnNames());
+			assertArrayEquals(
+					((OmeroTableColumn.LongData) columns.get(0)).getValues(),
+					((OmeroTableColumn.LongData) table.getColumns().get(1))
+							.getValues());
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsOtherFiles() throws IOException {
+		final File file = this.folder.newFile();
+		Files.write(file.toPath(), new byte[64]);
+		try (SeekableByteChannel channel = Files
+				.newByteChannel(file.toPath())) {
+			new OmeroColumnarReader(channel);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+package edu.umassmed.OmeroDataWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class OmeroJsonMetadataExtractorTest {
+
+	private static OmeroJsonMetadataExtractor extract(final String json,
+			final String... keyPaths) {
+		final OmeroJsonMetadataExtractor extractor = new OmeroJsonMetadataExtractor(
+				Arrays.asList(keyPaths));
+		final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		extractor.write(bytes, 0, bytes.length);
+		return extractor;
+	}
+
+	private static Map<String, String> map(final String... entries) {
+		final Map<String, String> map = new LinkedHashMap<String, String>();
+		for (int i = 0; i < entries.length; i += 2) {
+			map.put(entries[i], entries[i + 1]);
+		}
+		return map;
+	}
+
+	@Test
+	public void scalarsAtNestedPaths() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract(
+						"{ \"Microscope\": { \"Name\": \"Scope\", \"Lasers\": 3,"
+								+ " \"Inverted\": true, \"Serial\": null,"
+								+ " \"Power\": -1.5e-3 }, \"Other\": \"x\" }",
+						"Microscope.Name", "Microscope.Lasers",
+						"Microscope.Inverted", "Microscope.Serial",
+						"Microscope.Power");
+		assertTrue(extractor.isComplete());
+		assertEquals(OmeroJsonMetadataExtractorTest.map("Microscope.Name",
+				"Scope", "Microscope.Lasers", "3", "Microscope.Inverted",
+				"true", "Microscope.Power", "-1.5e-3"), extractor.getValues());
+	}
+
+	@Test
+	public void containersAreNotValues() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"a\": {\"b\": 1}, \"c\": [1, 2]}", "a", "c");
+		assertTrue(extractor.isComplete());
+		assertTrue(extractor.getValues().isEmpty());
+	}
+
+	@Test
+	public void escapes() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"k\": \"q\\\" b\\\\ s\\/ \\b\\f\\n\\r\\t end\"}",
+						"k");
+		assertTrue(extractor.isComplete());
+		assertEquals("q\" b\\ s/ \b\f\n\r\t end", extractor.getValues().get("k"));
+	}
+
+	@Test
+	public void escapedKeys() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"a\\u0062\": \"v\"}", "ab");
+		assertEquals("v", extractor.getValues().get("ab"));
+	}
+
+	@Test
+	public void unicodeEscapesAndSurrogatePairs() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"k\": \"caf\\u00e9 \\u6F22 \\ud83d\\ude00\"}", "k");
+		assertTrue(extractor.isComplete());
+		assertEquals("caf\u00e9 \u6f22 \ud83d\ude00",
+				extractor.getValues().get("k"));
+	}
+
+	@Test
+	public void invalidUnicodeEscape() {
+		assertFalse(OmeroJsonMetadataExtractorTest
+				.extract("{\"k\": \"\\u00g0\"}", "k").isComplete());
+	}
+
+	@Test
+	public void rawUtf8MixedWithEscapes() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"k\": \"\u00e9\\n\u6f22\\u0041\ud83d\ude00\"}", "k");
+		assertEquals("\u00e9\n\u6f22A\ud83d\ude00",
+				extractor.getValues().get("k"));
+	}
+
+	@Test
+	public void utf8SplitAcrossChunks() throws IOException {
+		final String json = "{\"Name\": \"\u00e9\u6f22\ud83d\ude00\","
+				+ " \"Count\": 12345}";
+		final byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+		for (int chunk = 1; chunk <= 4; chunk++) {
+			final OmeroJsonMetadataExtractor extractor = new OmeroJsonMetadataExtractor(
+					Arrays.asList("Name", "Count"));
+			for (int off = 0; off < bytes.length; off += chunk) {
+				extractor.write(bytes, off, Math.min(chunk, bytes.length - off));
+			}
+			assertTrue(extractor.isComplete());
+			assertEquals(OmeroJsonMetadataExtractorTest.map("Name",
+					"\u00e9\u6f22\ud83d\ude00", "Count", "12345"),
+					extractor.getValues());
+		}
+	}
+
+	@Test
+	public void wrapFeedsEveryByteRead() throws IOException {
+		final OmeroJsonMetadataExtractor extractor = new OmeroJsonMetadataExtractor(
+				Arrays.asList("a"));
+		final byte[] bytes = "{\"a\": \"\u00e9\"}"
+				.getBytes(StandardCharsets.UTF_8);
+		try (InputStream in = extractor
+				.wrap(new ByteArrayInputStream(bytes))) {
+			assertEquals('{', in.read());
+			final byte[] buf = new byte[3];
+			while (in.read(buf, 0, buf.length) > 0) {
+				// consumed
+			}
+		}
+		assertTrue(extractor.isComplete());
+		assertEquals("\u00e9", extractor.getValues().get("a"));
+	}
+
+	@Test
+	public void wildcardIndexes() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"Components\": [{\"Model\": \"A\"},"
+						+ " {\"Model\": \"B\", \"Id\": 7}, {}],"
+						+ " \"Grid\": [[1, 2], [3]]}",
+						"Components[*].Model", "Grid[*][*]");
+		assertTrue(extractor.isComplete());
+		assertEquals(OmeroJsonMetadataExtractorTest.map(
+				"Components[0].Model", "A", "Components[1].Model", "B",
+				"Grid[0][0]", "1", "Grid[0][1]", "2", "Grid[1][0]", "3"),
+				extractor.getValues());
+	}
+
+	@Test
+	public void fixedIndex() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"a\": [10, 11, 12]}", "a[1]");
+		assertEquals(OmeroJsonMetadataExtractorTest.map("a[1]", "11"),
+				extractor.getValues());
+	}
+
+	@Test
+	public void keyPathCharactersAreLiteral() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"a.b\": 1, \"axb\": 2}", "a.b");
+		assertEquals(OmeroJsonMetadataExtractorTest.map("a.b", "1"),
+				extractor.getValues());
+	}
+
+	@Test
+	public void topLevelLiterals() {
+		OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("42", "");
+		assertTrue(extractor.isComplete());
+		assertEquals("42", extractor.getValues().get(""));
+
+		extractor = OmeroJsonMetadataExtractorTest.extract(" \"s\" ", "");
+		assertTrue(extractor.isComplete());
+		assertEquals("s", extractor.getValues().get(""));
+
+		extractor = OmeroJsonMetadataExtractorTest.extract("false\n", "");
+		assertTrue(extractor.isComplete());
+		assertEquals("false", extractor.getValues().get(""));
+	}
+
+	@Test
+	public void topLevelArray() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("[1, {\"a\": \"x\"}]", "[*]", "[*].a");
+		assertTrue(extractor.isComplete());
+		assertEquals(OmeroJsonMetadataExtractorTest.map("[0]", "1", "[1].a",
+				"x"), extractor.getValues());
+	}
+
+	@Test
+	public void emptyContainers() {
+		assertTrue(OmeroJsonMetadataExtractorTest.extract("{}", "a")
+				.isComplete());
+		assertTrue(OmeroJsonMetadataExtractorTest.extract("[]", "a")
+				.isComplete());
+		assertTrue(OmeroJsonMetadataExtractorTest
+				.extract("{\"a\": [], \"b\": {}}", "a").isComplete());
+	}
+
+	@Test
+	public void invalidInput() {
+		final String[] documents = { "", "{", "{\"a\": 1", "{\"a\" 1}",
+				"{\"a\": }", "{a: 1}", "[1 2]", "[1,]x", "{\"a\": 1,}x",
+				"{\"a\": \"unterminated}", "{} {}", "{\"a\": 1]", "[1}",
+				"?" };
+		for (final String document : documents) {
+			assertFalse(document, OmeroJsonMetadataExtractorTest
+					.extract(document, "a").isComplete());
+		}
+	}
+
+	@Test
+	public void valuesBeforeAnErrorAreKept() {
+		final OmeroJsonMetadataExtractor extractor = OmeroJsonMetadataExtractorTest
+				.extract("{\"a\": 1, \"b\" ! 2}", "a", "b");
+		assertFalse(extractor.isComplete());
+		assertEquals(OmeroJsonMetadataExtractorTest.map("a", "1"),
+				extractor.getValues());
+	}
+}